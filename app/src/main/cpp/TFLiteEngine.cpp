@@ -1,8 +1,13 @@
 #include <iostream>
 #include <fstream>
 #include <cstring>
+#include <algorithm>
 #include <vector>
+#include <mutex>
 #include <sys/time.h>
+#include <time.h>
+#include <sys/mman.h>
+#include <unistd.h>
 #include "tensorflow/lite/core/interpreter.h"
 #include "tensorflow/lite/kernels/register.h"
 #include "tensorflow/lite/model.h"
@@ -24,98 +29,118 @@
     exit(1);                                                 \
   }
 
-int TFLiteEngine:: loadModel(const char *modelPath, const bool isMultilingual) {
-    std::cout << "Entering " << __func__ << "()" << std::endl;
+// Filters and vocab are read-only once loaded, so they are shared by all engine instances
+static std::mutex g_vocab_mutex;
+static bool g_vocab_loaded = false;
 
-    timeval start_time{}, end_time{};
-    if (!g_whisper_tflite.is_whisper_tflite_initialized) {
+static int loadFiltersAndVocab(const bool isMultilingual) {
+    std::lock_guard<std::mutex> lock(g_vocab_mutex);
+    if (g_vocab_loaded) {
+        return 0;
+    }
 
-        gettimeofday(&start_time, NULL);
-        std::cout << "Initializing TFLite..." << std::endl;
+    const char* vocabData = nullptr;
+    if (isMultilingual)
+        vocabData = reinterpret_cast<const char*>(filters_vocab_multilingual);
+    else
+        vocabData = reinterpret_cast<const char*>(filters_vocab_en);
+
+    // Read the magic number
+    int magic = 0;
+    std::memcpy(&magic, vocabData, sizeof(magic));
+    vocabData += sizeof(magic);
+
+    // Check the magic number
+    if (magic != 0x57535052) { // 'WSPR'
+        std::cerr << "Invalid vocab data (bad magic)" << std::endl;
+        return -1;
+    }
 
-        /////////////// Load filters and vocab data ///////////////
+    // Load mel filters
+    std::memcpy(&filters.n_mel, vocabData, sizeof(filters.n_mel));
+    vocabData += sizeof(filters.n_mel);
 
-       const char* vocabData = nullptr;
-        if (isMultilingual)
-            vocabData = reinterpret_cast<const char*>(filters_vocab_multilingual);
-        else
-            vocabData = reinterpret_cast<const char*>(filters_vocab_en);
+    std::memcpy(&filters.n_fft, vocabData, sizeof(filters.n_fft));
+    vocabData += sizeof(filters.n_fft);
 
-        // Read the magic number
-        int magic = 0;
-        std::memcpy(&magic, vocabData, sizeof(magic));
-        vocabData += sizeof(magic);
+    std::cout << "n_mel:" << filters.n_mel << " n_fft:" << filters.n_fft << std::endl;
 
-        // Check the magic number
-        if (magic != 0x57535052) { // 'WSPR'
-            std::cerr << "Invalid vocab data (bad magic)" << std::endl;
-            return -1;
-        }
+    filters.data.resize(filters.n_mel * filters.n_fft);
+    std::memcpy(filters.data.data(), vocabData, filters.data.size() * sizeof(float));
+    vocabData += filters.data.size() * sizeof(float);
 
-        // Load mel filters
-        std::memcpy(&filters.n_mel, vocabData, sizeof(filters.n_mel));
-        vocabData += sizeof(filters.n_mel);
+    // Load vocab
+    int n_vocab = 0;
+    std::memcpy(&n_vocab, vocabData, sizeof(n_vocab));
+    vocabData += sizeof(n_vocab);
 
-        std::memcpy(&filters.n_fft, vocabData, sizeof(filters.n_fft));
-        vocabData += sizeof(filters.n_fft);
+    std::cout << "n_vocab:" << n_vocab << std::endl;
 
-        std::cout << "n_mel:" << filters.n_mel << " n_fft:" << filters.n_fft << std::endl;
+    for (int i = 0; i < n_vocab; i++) {
+        int len = 0;
+        std::memcpy(&len, vocabData, sizeof(len));
+        vocabData += sizeof(len);
 
-        filters.data.resize(filters.n_mel * filters.n_fft);
-        std::memcpy(filters.data.data(), vocabData, filters.data.size() * sizeof(float));
-        vocabData += filters.data.size() * sizeof(float);
+        std::string word(vocabData, len);
+        vocabData += len;
 
-        // Load vocab
-        int n_vocab = 0;
-        std::memcpy(&n_vocab, vocabData, sizeof(n_vocab));
-        vocabData += sizeof(n_vocab);
+        g_vocab.id_to_token[i] = word;
+    }
 
-        std::cout << "n_vocab:" << n_vocab << std::endl;
+    // add additional vocab ids
+    int n_vocab_additional = 51864;
+    if (isMultilingual) {
+        n_vocab_additional = 51865;
+        g_vocab.token_eot++;
+        g_vocab.token_sot++;
+        g_vocab.token_prev++;
+        g_vocab.token_solm++;
+        g_vocab.token_not++;
+        g_vocab.token_beg++;
+    }
 
-        for (int i = 0; i < n_vocab; i++) {
-            int len = 0;
-            std::memcpy(&len, vocabData, sizeof(len));
-            vocabData += sizeof(len);
+    for (int i = n_vocab; i < n_vocab_additional; i++) {
+        std::string word;
+        if (i > g_vocab.token_beg) {
+            word = "[_TT_" + std::to_string(i - g_vocab.token_beg) + "]";
+        } else if (i == g_vocab.token_eot) {
+            word = "[_EOT_]";
+        } else if (i == g_vocab.token_sot) {
+            word = "[_SOT_]";
+        } else if (i == g_vocab.token_prev) {
+            word = "[_PREV_]";
+        } else if (i == g_vocab.token_not) {
+            word = "[_NOT_]";
+        } else if (i == g_vocab.token_beg) {
+            word = "[_BEG_]";
+        } else {
+            word = "[_extra_token_" + std::to_string(i) + "]";
+        }
+        g_vocab.id_to_token[i] = word;
+        // printf("%s: g_vocab[%d] = '%s'", __func__, i, word.c_str());
+    }
 
-            std::string word(vocabData, len);
-            vocabData += len;
+    g_vocab_loaded = true;
+    return 0;
+}
 
-            g_vocab.id_to_token[i] = word;
-        }
+TFLiteEngine::TFLiteEngine() : m_tflite(new whisper_tflite()), m_mel(new whisper_mel()), m_front_mel(new whisper_mel()) {}
 
-        // add additional vocab ids
-        int n_vocab_additional = 51864; 
-        if (isMultilingual) {
-            n_vocab_additional = 51865;
-            g_vocab.token_eot++;
-            g_vocab.token_sot++;
-            g_vocab.token_prev++;
-            g_vocab.token_solm++;
-            g_vocab.token_not++;
-            g_vocab.token_beg++;
-        }
+TFLiteEngine::~TFLiteEngine() {}
 
-        for (int i = n_vocab; i < n_vocab_additional; i++) {
-            std::string word;
-            if (i > g_vocab.token_beg) {
-                word = "[_TT_" + std::to_string(i - g_vocab.token_beg) + "]";
-            } else if (i == g_vocab.token_eot) {
-                word = "[_EOT_]";
-            } else if (i == g_vocab.token_sot) {
-                word = "[_SOT_]";
-            } else if (i == g_vocab.token_prev) {
-                word = "[_PREV_]";
-            } else if (i == g_vocab.token_not) {
-                word = "[_NOT_]";
-            } else if (i == g_vocab.token_beg) {
-                word = "[_BEG_]";
-            } else {
-                word = "[_extra_token_" + std::to_string(i) + "]";
-            }
-            g_vocab.id_to_token[i] = word;
-            // printf("%s: g_vocab[%d] = '%s'", __func__, i, word.c_str());
-        }
+int TFLiteEngine:: loadModel(const char *modelPath, const bool isMultilingual) {
+    std::cout << "Entering " << __func__ << "()" << std::endl;
+
+    timeval start_time{}, end_time{};
+    if (!m_tflite->is_whisper_tflite_initialized) {
+
+        gettimeofday(&start_time, NULL);
+        std::cout << "Initializing TFLite..." << std::endl;
 
+        /////////////// Load filters and vocab data ///////////////
+        if (loadFiltersAndVocab(isMultilingual) != 0) {
+            return -1;
+        }
 
         /////////////// Load tflite model buffer ///////////////
 
@@ -140,23 +165,56 @@ int TFLiteEngine:: loadModel(const char *modelPath, const bool isMultilingual) {
             std::cerr << "Error reading model data from file." << std::endl;
         }
 
-        g_whisper_tflite.size = size;
-        g_whisper_tflite.buffer = buffer;
+        m_tflite->size = size;
+        m_tflite->buffer = buffer;
 
-        g_whisper_tflite.model = tflite::FlatBufferModel::BuildFromBuffer(g_whisper_tflite.buffer, g_whisper_tflite.size);
-        TFLITE_MINIMAL_CHECK(g_whisper_tflite.model != nullptr);
+        if (buildInterpreter() != 0) {
+            return -1;
+        }
 
-        // Build the interpreter with the InterpreterBuilder.
-        tflite::InterpreterBuilder builder(*(g_whisper_tflite.model), g_whisper_tflite.resolver);
+        gettimeofday(&end_time, NULL);
+        std::cout << "Time taken for TFLite initialization: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
+    }
 
-        builder(&(g_whisper_tflite.interpreter));
-        TFLITE_MINIMAL_CHECK(g_whisper_tflite.interpreter != nullptr);
+    std::cout << "Exiting " << __func__ << "()" << std::endl;
+    return 0;
+}
 
-        // Allocate tensor buffers.
-        TFLITE_MINIMAL_CHECK(g_whisper_tflite.interpreter->AllocateTensors() == kTfLiteOk);
+int TFLiteEngine::loadModel(int fd, long offset, long length, const bool isMultilingual) {
+    std::cout << "Entering " << __func__ << "(fd)" << std::endl;
 
-        g_whisper_tflite.input = g_whisper_tflite.interpreter->typed_input_tensor<float>(0);
-        g_whisper_tflite.is_whisper_tflite_initialized = true;
+    timeval start_time{}, end_time{};
+    if (!m_tflite->is_whisper_tflite_initialized) {
+
+        gettimeofday(&start_time, NULL);
+        std::cout << "Initializing TFLite..." << std::endl;
+
+        /////////////// Load filters and vocab data ///////////////
+        if (loadFiltersAndVocab(isMultilingual) != 0) {
+            return -1;
+        }
+
+        /////////////// Map tflite model buffer ///////////////
+
+        // mmap offsets must be page aligned, assets start anywhere in the APK
+        long page_size = sysconf(_SC_PAGESIZE);
+        long aligned_offset = offset - offset % page_size;
+        size_t mapping_size = static_cast<size_t>(length + (offset - aligned_offset));
+
+        void *mapping = mmap(nullptr, mapping_size, PROT_READ, MAP_SHARED, fd, aligned_offset);
+        if (mapping == MAP_FAILED) {
+            std::cerr << "Unable to map model, fd: " << fd << " offset: " << offset << " length: " << length << std::endl;
+            return -1;
+        }
+
+        m_tflite->mapping = mapping;
+        m_tflite->mapping_size = mapping_size;
+        m_tflite->size = length;
+        m_tflite->buffer = static_cast<char *>(mapping) + (offset - aligned_offset);
+
+        if (buildInterpreter() != 0) {
+            return -1;
+        }
 
         gettimeofday(&end_time, NULL);
         std::cout << "Time taken for TFLite initialization: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
@@ -166,47 +224,107 @@ int TFLiteEngine:: loadModel(const char *modelPath, const bool isMultilingual) {
     return 0;
 }
 
-std::string TFLiteEngine::transcribeBuffer(std::vector<float> samples) {
+// Model and interpreter on m_tflite->buffer, which must stay valid until freeModel()
+int TFLiteEngine::buildInterpreter() {
+    m_tflite->model = tflite::FlatBufferModel::BuildFromBuffer(m_tflite->buffer, m_tflite->size);
+    TFLITE_MINIMAL_CHECK(m_tflite->model != nullptr);
+
+    // Build the interpreter with the InterpreterBuilder.
+    tflite::InterpreterBuilder builder(*(m_tflite->model), m_tflite->resolver);
+
+    builder(&(m_tflite->interpreter));
+    TFLITE_MINIMAL_CHECK(m_tflite->interpreter != nullptr);
+
+    // Allocate tensor buffers.
+    TFLITE_MINIMAL_CHECK(m_tflite->interpreter->AllocateTensors() == kTfLiteOk);
+
+    m_tflite->input = m_tflite->interpreter->typed_input_tensor<float>(0);
+    m_tflite->is_whisper_tflite_initialized = true;
+    return 0;
+}
+
+static int64_t monotonic_nanos() {
+    timespec ts{};
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return static_cast<int64_t>(ts.tv_sec) * 1000000000LL + ts.tv_nsec;
+}
+
+std::string TFLiteEngine::transcribeBuffer(std::vector<float> samples, int64_t* stage_nanos) {
     timeval start_time{}, end_time{};
     gettimeofday(&start_time, NULL);
+    if (stage_nanos) {
+        stage_nanos[0] = monotonic_nanos();
+        stage_nanos[1] = 0;
+        stage_nanos[2] = 0;
+    }
 
     // Hack if the audio file size is less than 30ms append with 0's
     samples.resize((WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE), 0);
     const auto processor_count = std::thread::hardware_concurrency();
 
     if (!log_mel_spectrogram(samples.data(), samples.size(), WHISPER_SAMPLE_RATE, WHISPER_N_FFT,
-                             WHISPER_HOP_LENGTH, WHISPER_N_MEL, processor_count, filters, mel)) {
+                             WHISPER_HOP_LENGTH, WHISPER_N_MEL, processor_count, filters, *m_mel)) {
         std::cerr << "Failed to compute mel spectrogram" << std::endl;
         return "";
     }
 
     gettimeofday(&end_time, NULL);
     std::cout << "Time taken for Spectrogram: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
+    if (stage_nanos)
+        stage_nanos[1] = monotonic_nanos();
+
+    std::string text = transcribeMel(m_mel->data.data());
+    if (stage_nanos)
+        stage_nanos[2] = monotonic_nanos();
+    return text;
+}
+
+bool TFLiteEngine::computeMel(const float* samples, int n_samples, float* mel_out, int mel_out_len) {
+    // Hack if the audio file size is less than 30ms append with 0's
+    const int n_padded = WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE;
+    m_front_samples.assign(n_padded, 0.0f);
+    std::memcpy(m_front_samples.data(), samples, std::min(n_samples, n_padded) * sizeof(float));
+    const auto processor_count = std::thread::hardware_concurrency();
+
+    if (!log_mel_spectrogram(m_front_samples.data(), n_padded, WHISPER_SAMPLE_RATE, WHISPER_N_FFT,
+                             WHISPER_HOP_LENGTH, WHISPER_N_MEL, processor_count, filters, *m_front_mel)) {
+        std::cerr << "Failed to compute mel spectrogram" << std::endl;
+        return false;
+    }
+
+    const int n_mel = std::min<int>(mel_out_len, m_front_mel->n_mel * m_front_mel->n_len);
+    std::memcpy(mel_out, m_front_mel->data.data(), n_mel * sizeof(float));
+    return true;
+}
+
+std::string TFLiteEngine::transcribeMel(const float* mel) {
+    timeval start_time{}, end_time{};
+    const auto processor_count = std::thread::hardware_concurrency();
 
     if (INFERENCE_ON_AUDIO_FILE) {
-        memcpy(g_whisper_tflite.input, mel.data.data(), mel.n_mel * mel.n_len * sizeof(float));
+        memcpy(m_tflite->input, mel, WHISPER_N_MEL * WHISPER_MEL_LEN * sizeof(float));
     } else {
-        memcpy(g_whisper_tflite.input, _content_input_features_bin, WHISPER_N_MEL * WHISPER_MEL_LEN * sizeof(float)); // to load pre-generated input_features
+        memcpy(m_tflite->input, _content_input_features_bin, WHISPER_N_MEL * WHISPER_MEL_LEN * sizeof(float)); // to load pre-generated input_features
     } // end of audio file processing
 
     gettimeofday(&start_time, NULL);
 
     // Run inference
-    g_whisper_tflite.interpreter->SetNumThreads(processor_count);
-    if (g_whisper_tflite.interpreter->Invoke() != kTfLiteOk) {
+    m_tflite->interpreter->SetNumThreads(processor_count);
+    if (m_tflite->interpreter->Invoke() != kTfLiteOk) {
         return "";
     }
 
     gettimeofday(&end_time, NULL);
     std::cout << "Time taken for Interpreter: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
 
-    int output = g_whisper_tflite.interpreter->outputs()[0];
-    TfLiteTensor *output_tensor = g_whisper_tflite.interpreter->tensor(output);
+    int output = m_tflite->interpreter->outputs()[0];
+    TfLiteTensor *output_tensor = m_tflite->interpreter->tensor(output);
     TfLiteIntArray *output_dims = output_tensor->dims;
     // assume output dims to be something like (1, 1, ... ,size)
     auto output_size = output_dims->data[output_dims->size - 1];
 
-    int *output_int = g_whisper_tflite.interpreter->typed_output_tensor<int>(0);
+    int *output_int = m_tflite->interpreter->typed_output_tensor<int>(0);
     std::string text = "";
 
     for (int i = 0; i < output_size; i++) {
@@ -222,7 +340,7 @@ std::string TFLiteEngine::transcribeBuffer(std::vector<float> samples) {
     return text;
 }
 
-std::string TFLiteEngine::transcribeFile(const char *waveFile) {
+std::string TFLiteEngine::transcribeFileWindow(const char *waveFile) {
 	std::vector<float> pcmf32 = readWAVFile(waveFile);
     pcmf32.resize((WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE), 0);
     std::string text = transcribeBuffer(pcmf32);
@@ -232,9 +350,19 @@ std::string TFLiteEngine::transcribeFile(const char *waveFile) {
 void TFLiteEngine::freeModel() {
     std::cout << "Entering " << __func__ << "()" << std::endl;
 
-    if (g_whisper_tflite.buffer) {
-        std::cout << __func__ << ": free buffer " << g_whisper_tflite.buffer << " memory" << std::endl;
-        delete[] g_whisper_tflite.buffer;
+    if (m_tflite->buffer) {
+        std::cout << __func__ << ": free buffer " << m_tflite->buffer << " memory" << std::endl;
+        m_tflite->interpreter.reset();
+        m_tflite->model.reset();
+        if (m_tflite->mapping) {
+            munmap(m_tflite->mapping, m_tflite->mapping_size);
+            m_tflite->mapping = nullptr;
+            m_tflite->mapping_size = 0;
+        } else {
+            delete[] m_tflite->buffer;
+        }
+        m_tflite->buffer = nullptr;
+        m_tflite->is_whisper_tflite_initialized = false;
     }
 
     std::cout << "Exiting " << __func__ << "()" << std::endl;
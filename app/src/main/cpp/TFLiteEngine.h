@@ -1,22 +1,44 @@
 #ifndef _TFLITEENGINE_H_
 #define _TFLITEENGINE_H_
 
+#include <cstdint>
+#include <memory>
 #include <string>
 #include <vector>
 
+struct whisper_tflite;
+struct whisper_mel;
+
 class TFLiteEngine {
 public:
-    TFLiteEngine() {};
-    ~TFLiteEngine() {};
+    TFLiteEngine();
+    ~TFLiteEngine();
 
     int loadModel(const char *modelPath, const bool isMultilingual);
+    // Model stored at [offset, offset + length) of fd, e.g. an uncompressed APK asset. The range is mapped
+    // in place, fd may be closed after the call.
+    int loadModel(int fd, long offset, long length, const bool isMultilingual);
     void freeModel();
 
-    std::string transcribeBuffer(std::vector<float> samples);
-    std::string transcribeFile(const char* waveFile);
+    // stage_nanos, if given, receives CLOCK_MONOTONIC timestamps (the clock of Java's System.nanoTime):
+    // {mel start, mel end, inference end}, a stage that did not run is left at 0
+    std::string transcribeBuffer(std::vector<float> samples, int64_t* stage_nanos = nullptr);
+    // First 30 s of the file only, for the desktop test driver; the app chunks long files in Java
+    std::string transcribeFileWindow(const char* waveFile);
+
+    // Stages of transcribeBuffer for pipelined batches: the mel front end and the inference use
+    // separate buffers, so computeMel for the next input may run while transcribeMel is in Invoke
+    bool computeMel(const float* samples, int n_samples, float* mel_out, int mel_out_len);
+    std::string transcribeMel(const float* mel);
 
 private:
-    // Add any private members or helper functions as needed
+    int buildInterpreter();
+
+    // Interpreter and mel buffer are per instance, so several engines can transcribe concurrently
+    std::unique_ptr<whisper_tflite> m_tflite;
+    std::unique_ptr<whisper_mel> m_mel;
+    std::unique_ptr<whisper_mel> m_front_mel;
+    std::vector<float> m_front_samples;
 };
 
 #endif // _TFLITEENGINE_H_
@@ -21,6 +21,14 @@ Java_com_whispertflite_engine_WhisperEngineNative_loadModel(JNIEnv *env, jobject
     return static_cast<jint>(result);
 }
 
+// JNI method to load the model from a byte range of a file descriptor (an uncompressed APK asset)
+JNIEXPORT jint JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_loadModelFd(JNIEnv *env, jobject thiz, jlong nativePtr, jint fd, jlong offset, jlong length, jboolean isMultilingual) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    int result = engine->loadModel(fd, offset, length, isMultilingual);
+    return static_cast<jint>(result);
+}
+
 // JNI method to free the model
 JNIEXPORT void JNICALL
 Java_com_whispertflite_engine_WhisperEngineNative_freeModel(JNIEnv *env, jobject thiz, jlong nativePtr) {
@@ -29,28 +37,50 @@ Java_com_whispertflite_engine_WhisperEngineNative_freeModel(JNIEnv *env, jobject
     delete engine;
 }
 
-// JNI method to transcribe audio buffer
+// JNI method to transcribe audio buffer, stageNanos receives the stage timestamps (see TFLiteEngine.h)
 JNIEXPORT jstring JNICALL
-Java_com_whispertflite_engine_WhisperEngineNative_transcribeBuffer(JNIEnv *env, jobject thiz, jlong nativePtr, jfloatArray samples) {
+Java_com_whispertflite_engine_WhisperEngineNative_transcribeBuffer(JNIEnv *env, jobject thiz, jlong nativePtr, jfloatArray samples, jlongArray stageNanos) {
     TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
 
     // Convert jfloatArray to std::vector<float>
     jsize len = env->GetArrayLength(samples);
     jfloat *data = env->GetFloatArrayElements(samples, 0);
     std::vector<float> sampleVector(data, data + len);
-    env->ReleaseFloatArrayElements(samples, data, 0);
+    env->ReleaseFloatArrayElements(samples, data, JNI_ABORT);
 
-    std::string result = engine->transcribeBuffer(sampleVector);
+    int64_t stages[3] = {0, 0, 0};
+    std::string result = engine->transcribeBuffer(sampleVector, stages);
+    jlong stageValues[3] = {stages[0], stages[1], stages[2]};
+    env->SetLongArrayRegion(stageNanos, 0, 3, stageValues);
     return env->NewStringUTF(result.c_str());
 }
 
-// JNI method to transcribe audio file
+// JNI method to compute the mel spectrogram of an audio buffer into melOut
+JNIEXPORT jboolean JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_computeMel(JNIEnv *env, jobject thiz, jlong nativePtr, jfloatArray samples, jfloatArray melOut) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+
+    jsize len = env->GetArrayLength(samples);
+    jfloat *data = env->GetFloatArrayElements(samples, 0);
+    jsize melLen = env->GetArrayLength(melOut);
+    jfloat *mel = env->GetFloatArrayElements(melOut, 0);
+
+    bool result = engine->computeMel(data, len, mel, melLen);
+
+    env->ReleaseFloatArrayElements(samples, data, JNI_ABORT);
+    env->ReleaseFloatArrayElements(melOut, mel, 0);
+    return static_cast<jboolean>(result);
+}
+
+// JNI method to run inference on a precomputed mel spectrogram
 JNIEXPORT jstring JNICALL
-Java_com_whispertflite_engine_WhisperEngineNative_transcribeFile(JNIEnv *env, jobject thiz, jlong nativePtr, jstring waveFile) {
+Java_com_whispertflite_engine_WhisperEngineNative_transcribeMel(JNIEnv *env, jobject thiz, jlong nativePtr, jfloatArray mel) {
     TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
-    const char *cWaveFile = env->GetStringUTFChars(waveFile, NULL);
-    std::string result = engine->transcribeFile(cWaveFile);
-    env->ReleaseStringUTFChars(waveFile, cWaveFile);
+
+    jfloat *data = env->GetFloatArrayElements(mel, 0);
+    std::string result = engine->transcribeMel(data);
+    env->ReleaseFloatArrayElements(mel, data, JNI_ABORT);
+
     return env->NewStringUTF(result.c_str());
 }
 
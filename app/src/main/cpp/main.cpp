@@ -17,11 +17,11 @@ int main() {
         return 1;
     }
 
-    // Transcribe an audio file
+    // Transcribe the first 30 s of an audio file
     const char* audioFilePath = "../../assets/jfk.wav";
     //audioFilePath = "../resources/MicInput.wav";
 	audioFilePath = "../english_test_3_bili.wav";
-    std::string transcription = engine.transcribeFile(audioFilePath);
+    std::string transcription = engine.transcribeFileWindow(audioFilePath);
     if (!transcription.empty()) {
         std::cout << "Transcription: " << transcription << std::endl;
     } else {
@@ -0,0 +1,136 @@
+#ifndef _RESAMPLER_H_
+#define _RESAMPLER_H_
+
+#include <algorithm>
+#include <cmath>
+#include <cstdint>
+#include <vector>
+
+// Streaming polyphase resampler with channel downmix.
+// Converts interleaved float frames of any rate/channel layout to mono at the output rate.
+// Filter bank and history are allocated once in init(), process() never allocates.
+struct audio_resampler {
+    static const int taps_per_phase = 32;
+
+    int channels = 1;
+    int up = 1;      // interpolation factor (L)
+    int down = 1;    // decimation factor (M)
+    bool passthrough = true;
+
+    std::vector<float> coeffs;   // polyphase filter bank, phase p at [p * taps_per_phase]
+    std::vector<float> history;  // mono history, mirrored so that one window is always contiguous
+    int history_pos = 0;
+    int phase = 0;
+
+    static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    bool init(int input_rate, int output_rate, int n_channels) {
+        if (input_rate <= 0 || output_rate <= 0 || n_channels <= 0) {
+            return false;
+        }
+
+        const int g = gcd(input_rate, output_rate);
+        channels = n_channels;
+        up = output_rate / g;
+        down = input_rate / g;
+        passthrough = (up == 1 && down == 1);
+        history_pos = 0;
+        phase = 0;
+
+        if (passthrough) {
+            coeffs.clear();
+            history.clear();
+            return true;
+        }
+
+        // Blackman windowed-sinc low-pass at the upsampled rate, split into 'up' phases
+        const int length = up * taps_per_phase;
+        const double cutoff = 0.5 / std::max(up, down); // cycles per upsampled sample
+        const double center = (length - 1) / 2.0;
+
+        std::vector<double> h(length);
+        double sum = 0.0;
+        for (int n = 0; n < length; n++) {
+            const double t = n - center;
+            const double sinc = (t == 0.0) ? 2.0 * cutoff : sin(2.0 * M_PI * cutoff * t) / (M_PI * t);
+            const double w = 0.42 - 0.5 * cos(2.0 * M_PI * n / (length - 1))
+                             + 0.08 * cos(4.0 * M_PI * n / (length - 1));
+            h[n] = sinc * w;
+            sum += h[n];
+        }
+
+        // Normalize to a DC gain of 'up' to compensate for zero stuffing
+        coeffs.resize(length);
+        for (int p = 0; p < up; p++) {
+            for (int k = 0; k < taps_per_phase; k++) {
+                coeffs[p * taps_per_phase + k] = h[p + k * up] * up / sum;
+            }
+        }
+
+        history.assign(2 * taps_per_phase, 0.0f);
+        return true;
+    }
+
+    // Number of mono output frames produced for n_frames input frames starting from a fresh state
+    uint64_t output_frames(uint64_t n_frames) const {
+        return (n_frames * up + down - 1) / down;
+    }
+
+    // Upper bound of output frames a single process() call can produce
+    int max_output_frames(int n_frames) const {
+        return static_cast<int>((static_cast<int64_t>(n_frames) * up) / down) + 1;
+    }
+
+    // Consume n_frames interleaved frames and write mono output, returns the number of frames written
+    int process(const float* in, int n_frames, float* out) {
+        float* out_begin = out;
+        const float scale = 1.0f / channels;
+
+        for (int i = 0; i < n_frames; i++) {
+            // downmix
+            float x = *in++;
+            for (int c = 1; c < channels; c++) {
+                x += *in++;
+            }
+            if (channels > 1) {
+                x *= scale;
+            }
+
+            if (passthrough) {
+                *out++ = x;
+                continue;
+            }
+
+            history[history_pos] = x;
+            history[history_pos + taps_per_phase] = x;
+            const float* newest = history.data() + history_pos + taps_per_phase;
+
+            // emit every output whose position falls on this input sample
+            while (phase < up) {
+                const float* c = coeffs.data() + phase * taps_per_phase;
+                float acc = 0.0f;
+                for (int k = 0; k < taps_per_phase; k++) {
+                    acc += c[k] * newest[-k];
+                }
+                *out++ = acc;
+                phase += down;
+            }
+            phase -= up;
+
+            if (++history_pos == taps_per_phase) {
+                history_pos = 0;
+            }
+        }
+
+        return static_cast<int>(out - out_begin);
+    }
+};
+
+#endif // _RESAMPLER_H_
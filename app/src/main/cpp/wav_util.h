@@ -3,6 +3,12 @@
 #include <vector>
 #include <cstdint>
 #include <cstring>
+#include <algorithm>
+
+#include "resampler.h"
+
+#define WAV_UTIL_OUTPUT_RATE 16000
+#define WAV_UTIL_BLOCK_FRAMES 4096
 
 #pragma pack(push, 1)  // Ensure that struct members are packed tightly
 
@@ -66,24 +72,89 @@ std::vector<float> readWAVFile(const char* filename) {
     std::cout << "Sample Rate: " << wav_header.sample_rate << std::endl;
     std::cout << "Bits Per Sample: " << wav_header.bits_per_sample << std::endl;
 
-    // Calculate the number of samples
-    uint32_t num_samples = wav_header.wav_size / wav_header.block_align;
-
-	// convert pcm 16 to float
-	std::vector<float> float_samples(num_samples);
-	if (wav_header.audio_format == 1) {
-		// Read audio samples into a vector of int16_t
-		std::vector<int16_t> pcm16_samples(num_samples);
-		wav_file.read(reinterpret_cast<char*>(pcm16_samples.data()), wav_header.wav_size);
-
-		// Convert int16_t samples to float samples
-		for (uint32_t i = 0; i < num_samples; i++) {
-			float_samples[i] = static_cast<float>(pcm16_samples[i]) / static_cast<float>(INT16_MAX);
-		}
-	} else {
-		// Read audio samples into a vector of float
-		wav_file.read(reinterpret_cast<char*>(float_samples.data()), wav_header.wav_size);
-	}
+    // Skip the rest of the fmt chunk and any chunks before "data". Sizes are validated before seeking:
+    // fmt holds at least the 16 PCM bytes and no chunk may reach past the end of the file.
+    const std::streampos fmt_end = wav_file.tellg();
+    wav_file.seekg(0, std::ios::end);
+    const uint64_t file_size = static_cast<uint64_t>(wav_file.tellg());
+    uint64_t position = static_cast<uint64_t>(fmt_end);
+    if (!wav_file || wav_header.fmt_chunk_size < 16 ||
+        wav_header.fmt_chunk_size - 16 > file_size - position) {
+        std::cerr << "Invalid fmt chunk: " << filename << std::endl;
+        return std::vector<float>();
+    }
+    position += wav_header.fmt_chunk_size - 16 + (wav_header.fmt_chunk_size & 1);
+    wav_file.seekg(position);
+    char chunk_id[4];
+    uint32_t data_size = 0;
+    bool found_data = false;
+    while (wav_file.read(chunk_id, 4) && wav_file.read(reinterpret_cast<char*>(&data_size), 4)) {
+        if (strncmp(chunk_id, "data", 4) == 0) {
+            found_data = true;
+            break;
+        }
+        position += 8;
+        if (data_size > file_size - position) {
+            std::cerr << "Invalid chunk size " << data_size << ": " << filename << std::endl;
+            return std::vector<float>();
+        }
+        position += data_size + (data_size & 1);
+        wav_file.seekg(position);
+    }
+
+    const bool is_pcm16 = (wav_header.audio_format == 1 && wav_header.bits_per_sample == 16);
+    const bool is_float = (wav_header.audio_format == 3 && wav_header.bits_per_sample == 32);
+    if (!found_data || wav_header.num_channels == 0 || (!is_pcm16 && !is_float)) {
+        std::cerr << "Unsupported WAV layout: " << filename << std::endl;
+        return std::vector<float>();
+    }
+
+    // Recorders that crash before patching the header leave 0 or -1 here
+    const std::streampos data_start = wav_file.tellg();
+    wav_file.seekg(0, std::ios::end);
+    const uint64_t remaining = static_cast<uint64_t>(wav_file.tellg() - data_start);
+    wav_file.seekg(data_start);
+    const uint64_t data_length = (data_size == 0 || data_size == UINT32_MAX) ? remaining : std::min<uint64_t>(data_size, remaining);
+
+    // Calculate the number of frames
+    const int channels = wav_header.num_channels;
+    const int bytes_per_sample = wav_header.bits_per_sample / 8;
+    const uint64_t num_frames = data_length / (bytes_per_sample * channels);
+
+    // Stream the data in blocks through the resampler: any rate/channel layout -> 16 kHz mono float
+    audio_resampler resampler;
+    if (!resampler.init(wav_header.sample_rate, WAV_UTIL_OUTPUT_RATE, channels)) {
+        std::cerr << "Invalid sample rate: " << wav_header.sample_rate << std::endl;
+        return std::vector<float>();
+    }
+
+    std::vector<float> float_samples(resampler.output_frames(num_frames));
+    std::vector<char> block(WAV_UTIL_BLOCK_FRAMES * bytes_per_sample * channels);
+    std::vector<float> frames(WAV_UTIL_BLOCK_FRAMES * channels);
+    size_t written = 0;
+    uint64_t frames_left = num_frames;
+
+    while (frames_left > 0) {
+        const int block_frames = static_cast<int>(std::min<uint64_t>(frames_left, WAV_UTIL_BLOCK_FRAMES));
+        const int count = block_frames * channels;
+        if (!wav_file.read(block.data(), count * bytes_per_sample)) {
+            break;
+        }
+
+        if (is_pcm16) {
+            // convert pcm 16 to float
+            const int16_t* pcm16 = reinterpret_cast<const int16_t*>(block.data());
+            for (int i = 0; i < count; i++) {
+                frames[i] = static_cast<float>(pcm16[i]) / static_cast<float>(INT16_MAX);
+            }
+        } else {
+            std::memcpy(frames.data(), block.data(), count * sizeof(float));
+        }
+
+        written += resampler.process(frames.data(), block_frames, float_samples.data() + written);
+        frames_left -= block_frames;
+    }
+    float_samples.resize(written);
 
     // Close the file
     wav_file.close();
@@ -52,6 +52,9 @@ whisper_vocab g_vocab;
 struct whisper_tflite {
     char* buffer = nullptr;
     long size = 0;
+    // Set when buffer points into an mmap()ed file range instead of a new[] allocation
+    void* mapping = nullptr;
+    size_t mapping_size = 0;
     std::unique_ptr<tflite::FlatBufferModel> model;
     tflite::ops::builtin::BuiltinOpResolver resolver;
     std::unique_ptr<tflite::Interpreter> interpreter;
@@ -60,8 +63,6 @@ struct whisper_tflite {
     bool is_whisper_tflite_initialized = false;
 };
 
-whisper_tflite g_whisper_tflite;
-
 // whisper_filters structure
 struct whisper_filters {
     int n_mel;
@@ -80,8 +81,6 @@ struct whisper_mel {
     std::vector<float> data;
 };
 
-whisper_mel mel;
-
 // Print a vector of float values
 void print(const std::vector<float>& a) {
     std::cout << "The vector elements are: ";
@@ -5,9 +5,9 @@ import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.content.res.AssetManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.speech.tts.TextToSpeech;
 import android.speech.tts.UtteranceProgressListener;
@@ -23,38 +23,59 @@ import com.whispertflite.asr.IRecorderListener;
 import com.whispertflite.asr.IWhisperListener;
 import com.whispertflite.asr.Recorder;
 import com.whispertflite.asr.Whisper;
+import com.whispertflite.utils.IntentMatcher;
+import com.whispertflite.utils.KeywordSpotter;
+import com.whispertflite.utils.SpeechDetector;
+import com.whispertflite.utils.Tracer;
 import com.whispertflite.utils.WaveUtil;
-
-import org.json.JSONArray;
-import org.json.JSONObject;
+import com.whispertflite.utils.WhisperUtil;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Locale;
-import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.whispertflite.utils.ChatbotTFLiteHelper;
 
 public class MainActivity extends AppCompatActivity {
     private final String TAG = "MainActivity";
+    private final int RECORD_PERMISSION_REQUEST = 0;
     private final String WAKE_WORD = "marcus";
     private final int WAKE_WORD_CHECK_INTERVAL = 2000;
+    // Each window overlaps the previous one by at least 1 s, the longest wake word that is never split
+    private final int WAKE_WORD_WINDOW_SAMPLES = 3 * Recorder.SAMPLE_RATE;
+    // With enrolled templates the keyword spotter checks more often, Whisper only runs on its hits,
+    // to confirm them when WAKE_WORD_CONFIRM is set
+    private final int KEYWORD_SPOT_INTERVAL = 1000;
+    private final boolean WAKE_WORD_CONFIRM = true;
+    private final String WAKE_WORD_TEMPLATES = "wake_word_templates.bin";
 
     private TextView tvStatus, tvResult;
     private FloatingActionButton fabCopy;
 
     private Whisper mWhisper;
     private Recorder mRecorder;
+    private final SpeechDetector mSpeechDetector = new SpeechDetector();
+    private KeywordSpotter mKeywordSpotter;
     private TextToSpeech tts;
-    private JSONArray conversationData;
-
-    private boolean isWaitingForWakeWord = true;
-    private Handler wakeWordHandler = new Handler();
+    private volatile long mTtsRequest = Tracer.NO_REQUEST;
+    private volatile long mTtsStart = 0;
+    // Intent matching runs on its own thread, mIntentMatcher is only used there
+    private final ExecutorService mResponseExecutor = Executors.newSingleThreadExecutor();
+    private IntentMatcher mIntentMatcher;
+
+    // Wake word checks (snapshot, speech gate, keyword spotter) run on their own thread, only the
+    // decision is posted to the UI thread
+    private volatile boolean isWaitingForWakeWord = true;
+    private final HandlerThread mWakeWordThread = new HandlerThread("WakeWordCheck");
+    private Handler wakeWordHandler;
     private Runnable wakeWordChecker;
-    private String wakeWordTempFile = "wake_word_temp.wav";
+    private final float[] mWakeWordClip = new float[WAKE_WORD_WINDOW_SAMPLES];
 
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
     private final String conversationFile = WaveUtil.RECORDING_FILE;
@@ -77,7 +98,8 @@ public class MainActivity extends AppCompatActivity {
         });
 
         checkRecordPermission();
-        copyAssetsWithExtensionsToDataFolder(this, new String[]{"tflite", "bin", "wav", "pcm", "json"});
+        mWakeWordThread.start();
+        wakeWordHandler = new Handler(mWakeWordThread.getLooper());
 
         initConversationEngine();
         initWhisperAndRecorder();
@@ -90,49 +112,168 @@ public class MainActivity extends AppCompatActivity {
         tvStatus.setText("Say \"" + WAKE_WORD + "\" to start...");
         Log.d(TAG, "Starting wake word detection");
 
-        mRecorder.setFilePath(getFilePath(wakeWordTempFile));
-        mRecorder.start();
+        // Capture runs continuously, wake word windows overlap so a wake word is never split between them
+        mRecorder.cancelUtterance();
+        startCapture();
 
         wakeWordChecker = new Runnable() {
             @Override
             public void run() {
                 if (isWaitingForWakeWord) {
-                    Log.d(TAG, "Checking for wake word...");
-                    mRecorder.stop();
-                    startTranscription(getFilePath(wakeWordTempFile));
+                    // Capture ends if the source fails, e.g. before the permission was granted
+                    if (!mRecorder.isInProgress())
+                        startCapture();
 
-                    wakeWordHandler.postDelayed(() -> {
-                        if (isWaitingForWakeWord) {
-                            mRecorder.setFilePath(getFilePath(wakeWordTempFile));
-                            mRecorder.start();
-                        }
-                    }, 300);
-
-                    wakeWordHandler.postDelayed(this, WAKE_WORD_CHECK_INTERVAL);
+                    Log.d(TAG, "Checking for wake word...");
+                    Tracer.beginRequest();
+                    // The window is copied into a reused buffer, it is far younger than the ring, so it
+                    // starts where requested (or at 0 early on) and ends at clipStart + length
+                    long clipStart = Math.max(0, mRecorder.getPosition() - WAKE_WORD_WINDOW_SAMPLES);
+                    int length = mRecorder.snapshot(clipStart, mWakeWordClip, 0, WAKE_WORD_WINDOW_SAMPLES);
+                    checkWakeWord(mWakeWordClip, length, clipStart + length);
+
+                    boolean spotting = mKeywordSpotter != null && mKeywordSpotter.getTemplateCount() > 0;
+                    wakeWordHandler.postDelayed(this, spotting ? KEYWORD_SPOT_INTERVAL : WAKE_WORD_CHECK_INTERVAL);
                 }
             }
         };
         wakeWordHandler.postDelayed(wakeWordChecker, WAKE_WORD_CHECK_INTERVAL);
     }
 
-    private void startConversation() {
+    // Continuous capture, only once recording is permitted; restarted from onRequestPermissionsResult()
+    // and by the wake word checker if the capture thread ended
+    private void startCapture() {
+        if (!hasRecordPermission()) {
+            Log.d(TAG, "No RECORD_AUDIO permission, capture not started");
+            return;
+        }
+        Log.d(TAG, "Starting continuous capture");
+        mRecorder.startContinuous();
+    }
+
+    // Runs on mWakeWordThread. Only clips with speech in them are checked. Once templates are enrolled the
+    // keyword spotter decides which clips reach Whisper; stale Whisper checks are dropped if the previous one
+    // is still running. clip is reused, only clips sent to Whisper are copied.
+    private void checkWakeWord(float[] clip, int length, long clipEnd) {
+        long gateStart = Tracer.begin();
+        boolean hasSpeech = mSpeechDetector.containsSpeech(clip, length);
+        Tracer.end(Tracer.SPAN_SPEECH_GATE, gateStart);
+        if (!hasSpeech) {
+            Log.d(TAG, "No speech in clip, skipping wake word check");
+            return;
+        }
+
+        if (mKeywordSpotter != null && mKeywordSpotter.getTemplateCount() > 0) {
+            long spotStart = Tracer.begin();
+            float confidence = mKeywordSpotter.score(clip, length);
+            Tracer.end(Tracer.SPAN_KEYWORD_SPOT, spotStart);
+            if (confidence < mKeywordSpotter.getMinConfidence()) {
+                Log.d(TAG, "Keyword spotter miss, confidence: " + confidence);
+                return;
+            }
+
+            Log.d(TAG, "Keyword spotter hit, confidence: " + confidence);
+            if (!WAKE_WORD_CONFIRM) {
+                mainHandler.post(() -> onWakeWordDetected(clipEnd));
+                return;
+            }
+        }
+
+        float[] samples = Arrays.copyOf(clip, length);
+        startTranscription(samples, Whisper.PRIORITY_WAKE_WORD, WAKE_WORD_CHECK_INTERVAL)
+                .thenAccept(result -> onWakeWordResult(result, samples, clipEnd));
+    }
+
+    private void onWakeWordResult(String result, float[] clip, long clipEnd) {
+        long request = Tracer.getRequest();
+        mainHandler.post(() -> {
+            Log.d(TAG, "Wake word check result: " + result);
+            Tracer.setRequest(request);
+
+            if (isWaitingForWakeWord && result.toLowerCase().contains(WAKE_WORD.toLowerCase())) {
+                // Clips where Whisper heard the wake word on its own are offered as keyword spotter templates,
+                // on the thread that uses the spotter. They are enrolled once two of them match each other.
+                if (mKeywordSpotter != null && result.trim().split("\\s+").length <= 2) {
+                    wakeWordHandler.post(() -> {
+                        if (mKeywordSpotter.offerTemplate(clip, clip.length))
+                            mKeywordSpotter.saveTemplates(getFilePath(WAKE_WORD_TEMPLATES));
+                    });
+                }
+                onWakeWordDetected(clipEnd);
+            }
+        });
+    }
+
+    // The command starts with the audio right after the clip that held the wake word
+    private void onWakeWordDetected(long clipEnd) {
+        if (!isWaitingForWakeWord)
+            return;
+
+        Log.d(TAG, "Wake word detected!");
+        isWaitingForWakeWord = false;
+        wakeWordHandler.removeCallbacks(wakeWordChecker);
+        tvResult.setText("Wake word detected!\n");
+        startConversation(clipEnd, false);
+    }
+
+    private void onConversationResult(String result) {
+        long request = Tracer.getRequest();
+        mainHandler.post(() -> {
+            Log.d(TAG, "Processing result: " + result);
+            Tracer.setRequest(request);
+
+            tvResult.append("You: " + result + "\n");
+            CompletableFuture.supplyAsync(() -> {
+                Tracer.setRequest(request);
+                long responseStart = Tracer.begin();
+                String response = getResponse(result.toLowerCase());
+                Tracer.end(Tracer.SPAN_GET_RESPONSE, responseStart);
+                return response;
+            }, mResponseExecutor).thenAccept(response -> mainHandler.post(() -> {
+                Tracer.setRequest(request);
+                tvResult.append("Bot: " + response + "\n");
+
+                // Don't record while speaking
+                mRecorder.cancelUtterance();
+                speak(response, "response_utterance");
+            }));
+        });
+    }
+
+    // The utterance was not transcribed (engine not ready, job cancelled or failed): nothing will restart
+    // listening, so go back to waiting for the wake word
+    private void onConversationFailed(Throwable error) {
+        Log.e(TAG, "Conversation transcription failed", error);
+        mainHandler.post(() -> {
+            if (isDestroyed() || isWaitingForWakeWord)
+                return;
+            startWakeWordDetection();
+        });
+    }
+
+    // Record the next utterance, starting at an earlier capture position for pre-roll.
+    // After our own speech output only new speech counts, the echo of the reply may still be in a segment.
+    private void startConversation(long fromPosition, boolean afterSpeechOutput) {
         tvStatus.setText("Listening...");
         mRecorder.setFilePath(getFilePath(conversationFile));
-        mRecorder.start();
+        mRecorder.beginUtterance(fromPosition, afterSpeechOutput);
     }
 
+    // The intents are compiled on the response thread, so responses queue behind it instead of the UI waiting
     private void initConversationEngine() {
-        try {
-            InputStream is = getAssets().open("conversation.json");
-            byte[] buffer = new byte[is.available()];
-            is.read(buffer);
-            is.close();
-            String json = new String(buffer, StandardCharsets.UTF_8);
-            conversationData = new JSONArray(json);
-            Log.d(TAG, "Conversation JSON loaded successfully");
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to load conversation.json", e);
-        }
+        mResponseExecutor.execute(() -> {
+            try {
+                InputStream is = getAssets().open("conversation.json");
+                byte[] buffer = new byte[is.available()];
+                is.read(buffer);
+                is.close();
+                String json = new String(buffer, StandardCharsets.UTF_8);
+                mIntentMatcher = new IntentMatcher(json);
+                Log.d(TAG, "Conversation JSON loaded successfully, candidates: " + mIntentMatcher.getCandidateCount());
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to load conversation.json", e);
+            }
+        });
 
         tts = new TextToSpeech(getApplicationContext(), status -> {
             if (status == TextToSpeech.SUCCESS) {
@@ -142,7 +283,7 @@ public class MainActivity extends AppCompatActivity {
                     public void onStart(String utteranceId) {
                         mainHandler.post(() -> {
                             if (!isWaitingForWakeWord) {
-                                mRecorder.stop();
+                                mRecorder.cancelUtterance();
                                 Log.d(TAG, "Stopped recording for speech output");
                             }
                         });
@@ -150,9 +291,10 @@ public class MainActivity extends AppCompatActivity {
 
                     @Override
                     public void onDone(String utteranceId) {
+                        Tracer.end(Tracer.SPAN_TTS, mTtsRequest, mTtsStart);
                         mainHandler.post(() -> {
                             if (!isWaitingForWakeWord) {
-                                startConversation();
+                                startConversation(mRecorder.getPosition(), true);
                                 Log.d(TAG, "Restarted recording after speech");
                             }
                         });
@@ -162,7 +304,7 @@ public class MainActivity extends AppCompatActivity {
                     public void onError(String utteranceId) {
                         mainHandler.post(() -> {
                             if (!isWaitingForWakeWord) {
-                                startConversation();
+                                startConversation(mRecorder.getPosition(), true);
                             }
                         });
                     }
@@ -175,11 +317,13 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void initWhisperAndRecorder() {
-        String modelPath = getFilePath("whisper-tiny-en.tflite");
-        String vocabPath = getFilePath("filters_vocab_en.bin");
+        // Mapped from the APK, or from filesDir when not bundled
+        String modelAsset = "whisper-tiny-en.tflite";
+        String vocabAsset = "filters_vocab_en.bin";
 
         mWhisper = new Whisper(this);
-        mWhisper.loadModel(modelPath, vocabPath, false);
+        mWhisper.loadModelFromAssets(modelAsset, vocabAsset, false);
+        initKeywordSpotter(vocabAsset);
         mWhisper.setListener(new IWhisperListener() {
             @Override
             public void onUpdateReceived(String message) {
@@ -189,29 +333,10 @@ public class MainActivity extends AppCompatActivity {
                 });
             }
 
+            // Results are routed through the future of each job, see startTranscription()
             @Override
             public void onResultReceived(String result) {
-                mainHandler.post(() -> {
-                    Log.d(TAG, "Processing result: " + result);
-
-                    if (isWaitingForWakeWord) {
-                        if (result.toLowerCase().contains(WAKE_WORD.toLowerCase())) {
-                            Log.d(TAG, "Wake word detected!");
-                            isWaitingForWakeWord = false;
-                            wakeWordHandler.removeCallbacks(wakeWordChecker);
-                            tvResult.setText("Wake word detected!\n");
-                            startConversation();
-                        }
-                    } else {
-                        tvResult.append("You: " + result + "\n");
-                        String response = getResponse(result.toLowerCase());
-                        tvResult.append("Bot: " + response + "\n");
-
-                        // Stop recording before speaking
-                        mRecorder.stop();
-                        speak(response, "response_utterance");
-                    }
-                });
+                Log.d(TAG, "Whisper result: " + result);
             }
         });
 
@@ -222,97 +347,92 @@ public class MainActivity extends AppCompatActivity {
                 mainHandler.post(() -> {
                     tvStatus.setText(message);
                     Log.d(TAG, "Recorder: " + message);
-
-                    if (message.equals(Recorder.MSG_RECORDING_DONE) && !isWaitingForWakeWord) {
-                        startTranscription(getFilePath(conversationFile));
-                    }
                 });
             }
 
+            // Conversation utterances, transcribed from memory; called on the recording thread
             @Override
             public void onDataReceived(float[] samples) {
-                // Not used
+                long request = mRecorder.getTraceRequest();
+                mainHandler.post(() -> {
+                    Tracer.setRequest(request);
+                    startTranscription(samples, Whisper.PRIORITY_CONVERSATION, 0)
+                            .whenComplete((result, error) -> {
+                                if (error != null)
+                                    onConversationFailed(error);
+                                else
+                                    onConversationResult(result);
+                            });
+                });
             }
         });
     }
 
-    private void startTranscription(String filePath) {
-        Log.d(TAG, "Starting transcription for: " + filePath);
-        mWhisper.setFilePath(filePath);
+    // The spotter shares Whisper's mel filters, its templates are enrolled from confirmed wake words that
+    // agree with each other
+    private void initKeywordSpotter(String vocabAsset) {
+        try {
+            WhisperUtil whisperUtil = new WhisperUtil();
+            whisperUtil.loadFiltersAndVocab(false, this, vocabAsset);
+            mKeywordSpotter = new KeywordSpotter(whisperUtil);
+            mKeywordSpotter.loadTemplates(getFilePath(WAKE_WORD_TEMPLATES));
+        } catch (IOException e) {
+            Log.e(TAG, "Keyword spotter unavailable, using Whisper for the wake word", e);
+            mKeywordSpotter = null;
+        }
+    }
+
+    private CompletableFuture<String> startTranscription(float[] samples, int priority, long timeoutMs) {
+        Log.d(TAG, "Starting transcription for " + samples.length + " samples");
         mWhisper.setAction(Whisper.ACTION_TRANSCRIBE);
-        mWhisper.start();
+        return mWhisper.submitBuffer(samples, priority, timeoutMs);
     }
 
     private void speak(String text, String utteranceId) {
         if (tts != null) {
+            mTtsRequest = Tracer.getRequest();
+            mTtsStart = Tracer.begin();
             tts.speak(text, TextToSpeech.QUEUE_FLUSH, null, utteranceId);
             Log.d(TAG, "Speaking: " + text);
         }
     }
 
+    // Runs on mResponseExecutor
     private String getResponse(String userInput) {
-        try {
-            int minDistance = Integer.MAX_VALUE;
-            JSONObject bestMatchIntent = null;
-
-            for (int i = 0; i < conversationData.length(); i++) {
-                JSONObject intentObj = conversationData.getJSONObject(i);
-                JSONArray utterances = intentObj.getJSONArray("utterances");
-
-                for (int j = 0; j < utterances.length(); j++) {
-                    JSONArray tokenArray = utterances.getJSONArray(j);
-                    StringBuilder sb = new StringBuilder();
-                    for (int k = 0; k < tokenArray.length(); k++) {
-                        sb.append(tokenArray.getString(k)).append(" ");
-                    }
-                    String candidate = sb.toString().trim();
-                    int distance = levenshteinDistance(userInput, candidate);
-                    if (distance < minDistance && distance < candidate.length() / 2) {
-                        minDistance = distance;
-                        bestMatchIntent = intentObj;
-                    }
-                }
-            }
-
-            if (bestMatchIntent != null) {
-                JSONArray responses = bestMatchIntent.getJSONArray("responses");
-                int index = new Random().nextInt(responses.length());
-                return responses.getString(index);
-            } else {
-                return "I didn't understand that. Can you rephrase?";
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error processing input", e);
+        if (mIntentMatcher == null)
             return "There was an error processing your request.";
-        }
+
+        String response = mIntentMatcher.respond(userInput);
+        return (response != null) ? response : "I didn't understand that. Can you rephrase?";
     }
 
-    private int levenshteinDistance(String s1, String s2) {
-        int len1 = s1.length(), len2 = s2.length();
-        int[][] dp = new int[len1 + 1][len2 + 1];
-        for (int i = 0; i <= len1; i++) dp[i][0] = i;
-        for (int j = 0; j <= len2; j++) dp[0][j] = j;
-        for (int i = 1; i <= len1; i++) {
-            for (int j = 1; j <= len2; j++) {
-                int cost = s1.charAt(i - 1) == s2.charAt(j - 1) ? 0 : 1;
-                dp[i][j] = Math.min(Math.min(
-                                dp[i - 1][j] + 1,
-                                dp[i][j - 1] + 1),
-                        dp[i - 1][j - 1] + cost
-                );
-            }
-        }
-        return dp[len1][len2];
+    private boolean hasRecordPermission() {
+        int permission = ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO);
+        return permission == PackageManager.PERMISSION_GRANTED;
     }
 
     private void checkRecordPermission() {
-        int permission = ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO);
-        if (permission != PackageManager.PERMISSION_GRANTED) {
-            requestPermissions(new String[]{Manifest.permission.RECORD_AUDIO}, 0);
+        if (!hasRecordPermission()) {
+            requestPermissions(new String[]{Manifest.permission.RECORD_AUDIO}, RECORD_PERMISSION_REQUEST);
             Log.d(TAG, "Requesting RECORD_AUDIO permission");
         }
     }
 
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode != RECORD_PERMISSION_REQUEST)
+            return;
+
+        if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            Log.d(TAG, "RECORD_AUDIO permission granted");
+            if (mRecorder != null && !mRecorder.isInProgress())
+                startCapture();
+        } else {
+            tvStatus.setText("Microphone permission is needed to listen");
+        }
+    }
+
     @Override
     protected void onDestroy() {
         if (tts != null) {
@@ -322,44 +442,19 @@ public class MainActivity extends AppCompatActivity {
         if (wakeWordHandler != null) {
             wakeWordHandler.removeCallbacks(wakeWordChecker);
         }
+        mWakeWordThread.quitSafely();
         if (mRecorder != null) {
-            mRecorder.stop();
+            mRecorder.release();
         }
-        super.onDestroy();
-    }
-
-    private void copyAssetsWithExtensionsToDataFolder(Context context, String[] extensions) {
-        AssetManager assetManager = context.getAssets();
-        try {
-            String destFolder = context.getFilesDir().getAbsolutePath();
-            String[] assetFiles = assetManager.list("");
-
-            for (String assetFileName : assetFiles) {
-                for (String extension : extensions) {
-                    if (assetFileName.endsWith("." + extension)) {
-                        File outFile = new File(destFolder, assetFileName);
-                        if (outFile.exists()) continue;
-
-                        try (InputStream inputStream = assetManager.open(assetFileName);
-                             OutputStream outputStream = new FileOutputStream(outFile)) {
-                            byte[] buffer = new byte[1024];
-                            int read;
-                            while ((read = inputStream.read(buffer)) != -1) {
-                                outputStream.write(buffer, 0, read);
-                            }
-                            Log.d(TAG, "Copied asset: " + assetFileName);
-                        }
-                        break;
-                    }
-                }
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Asset copy error", e);
+        if (mWhisper != null) {
+            mWhisper.release();
         }
+        mResponseExecutor.shutdown();
+        super.onDestroy();
     }
 
-    private String getFilePath(String assetName) {
-        File file = new File(getFilesDir(), assetName);
+    private String getFilePath(String fileName) {
+        File file = new File(getFilesDir(), fileName);
         return file.getAbsolutePath();
     }
 }
\ No newline at end of file
@@ -0,0 +1,154 @@
+package com.whispertflite.asr;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Bounded single-producer/single-consumer ring of preallocated sample blocks.
+// write() copies into the next free block, take() copies the next block out, neither allocates.
+// Head is only advanced by the producer; tail is advanced by the consumer and, when the ring is
+// full and the policy drops audio, by the producer as well (both sides CAS it, so a block being
+// read while it is dropped is detected and the read is retried).
+public class AudioBlockRing {
+    public enum OverflowPolicy {
+        DROP_OLDEST,  // producer discards the oldest pending block
+        BLOCK,        // producer waits for a free block
+        COALESCE      // like DROP_OLDEST, and the consumer skips to the newest pending block
+    }
+
+    private static final long PARK_NANOS = 1_000_000L;
+
+    private final int mCapacity;
+    private final int mBlockSamples;
+    private final OverflowPolicy mPolicy;
+    private final float[][] mBlocks;
+    private final int[] mLengths;
+
+    private final AtomicLong mHead = new AtomicLong(0);
+    private final AtomicLong mTail = new AtomicLong(0);
+    private final AtomicLong mDropped = new AtomicLong(0);
+    private volatile boolean mClosed = false;
+    private volatile Thread mConsumer = null;
+    private volatile Thread mProducer = null;
+
+    public AudioBlockRing(int capacity, int blockSamples, OverflowPolicy policy) {
+        if (capacity <= 0 || blockSamples <= 0)
+            throw new IllegalArgumentException("Invalid ring size: " + capacity + " x " + blockSamples);
+
+        mCapacity = capacity;
+        mBlockSamples = blockSamples;
+        mPolicy = policy;
+        mBlocks = new float[capacity][blockSamples];
+        mLengths = new int[capacity];
+    }
+
+    public int getBlockSamples() {
+        return mBlockSamples;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    // Number of blocks waiting to be taken
+    public int getDepth() {
+        return (int) (mHead.get() - mTail.get());
+    }
+
+    // Number of blocks discarded by the overflow policy
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    // Producer side. Samples beyond getBlockSamples() are truncated.
+    // Returns false if the ring was closed before the block could be queued.
+    public boolean write(float[] samples, int offset, int length) {
+        long head = mHead.get();
+        while (head - mTail.get() >= mCapacity) {
+            if (mClosed)
+                return false;
+
+            if (mPolicy == OverflowPolicy.BLOCK) {
+                mProducer = Thread.currentThread();
+                if (head - mTail.get() >= mCapacity)
+                    LockSupport.parkNanos(this, PARK_NANOS);
+            } else {
+                long tail = mTail.get();
+                if (head - tail >= mCapacity && mTail.compareAndSet(tail, tail + 1))
+                    mDropped.incrementAndGet();
+            }
+        }
+
+        if (mClosed)
+            return false;
+
+        int slot = (int) (head % mCapacity);
+        int count = Math.min(length, mBlockSamples);
+        System.arraycopy(samples, offset, mBlocks[slot], 0, count);
+        mLengths[slot] = count;
+        mHead.set(head + 1);
+
+        Thread consumer = mConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+        return true;
+    }
+
+    // Consumer side. Waits for the next block and copies it into dst (at least getBlockSamples() long).
+    // Returns the number of samples copied, or -1 once the ring is closed. dst beyond the returned count
+    // keeps its previous contents, samples of a torn copy of a dropped block are cleared.
+    public int take(float[] dst) {
+        mConsumer = Thread.currentThread();
+        int torn = 0;  // high-water mark of copies that were retried
+        while (true) {
+            long tail = mTail.get();
+            long head = mHead.get();
+
+            if (mClosed) {
+                Arrays.fill(dst, 0, torn, 0.0f);
+                return -1;
+            }
+
+            if (head == tail) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            if (mPolicy == OverflowPolicy.COALESCE && head - tail > 1) {
+                if (mTail.compareAndSet(tail, head - 1))
+                    mDropped.addAndGet(head - 1 - tail);
+                continue;
+            }
+
+            int slot = (int) (tail % mCapacity);
+            int count = mLengths[slot];
+            System.arraycopy(mBlocks[slot], 0, dst, 0, count);
+
+            // Fails only if the producer dropped this block meanwhile, then the copy may be torn
+            if (mTail.compareAndSet(tail, tail + 1)) {
+                Thread producer = mProducer;
+                if (producer != null)
+                    LockSupport.unpark(producer);
+                if (torn > count)
+                    Arrays.fill(dst, count, torn, 0.0f);
+                return count;
+            }
+            torn = Math.max(torn, count);
+        }
+    }
+
+    // Wake up both sides; pending blocks are discarded
+    public void close() {
+        mClosed = true;
+        Thread consumer = mConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+        Thread producer = mProducer;
+        if (producer != null)
+            LockSupport.unpark(producer);
+    }
+}
@@ -0,0 +1,123 @@
+package com.whispertflite.asr;
+
+import android.util.Log;
+
+import com.whispertflite.utils.WaveUtil;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+// Replays a recording as capture input, for exercising the capture, endpointing and streaming paths
+// without a microphone. WAV files in any supported format are converted to 16 kHz mono; other files are
+// read as raw 16 kHz mono PCM_FLOAT, the layout of the cpp/samples/*.pcm files.
+// In real-time mode reads are paced to the sample rate, otherwise the file is delivered as fast as it is
+// consumed, which measures the sustainable throughput of everything behind the Recorder.
+// Runs off-device in local unit tests: the only Android dependency on this path is android.util.Log, which
+// unit tests stub (returnDefaultValues), and the Recorder needs its Context only for the microphone.
+public class FileAudioSource implements IAudioSource {
+    private static final String TAG = "FileAudioSource";
+
+    private final String mFilePath;
+    private final boolean mRealtime;
+    private int mLoops = 1;
+
+    private float[] mSamples = null;
+    private int mReadPosition = 0;
+    private int mLoop = 0;
+    private long mDelivered = 0;
+    private long mStartNanos = 0;
+
+    public FileAudioSource(String filePath, boolean realtime) {
+        mFilePath = filePath;
+        mRealtime = realtime;
+    }
+
+    // Play the file this many times back to back, for longer load runs
+    public void setLoops(int loops) {
+        mLoops = Math.max(1, loops);
+    }
+
+    // Samples delivered since start()
+    public long getDeliveredSamples() {
+        return mDelivered;
+    }
+
+    @Override
+    public boolean start() {
+        mSamples = mFilePath.toLowerCase(Locale.ROOT).endsWith(".wav") ? WaveUtil.getSamples(mFilePath) : readPcmFloat(mFilePath);
+        if (mSamples == null || mSamples.length == 0) {
+            Log.e(TAG, "No audio in " + mFilePath);
+            return false;
+        }
+
+        mReadPosition = 0;
+        mLoop = 0;
+        mDelivered = 0;
+        mStartNanos = System.nanoTime();
+        Log.d(TAG, "Replaying " + mFilePath + ", samples: " + mSamples.length + ", realtime: " + mRealtime);
+        return true;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int sizeInBytes) {
+        if (mReadPosition == mSamples.length && ++mLoop < mLoops)
+            mReadPosition = 0;
+
+        int count = Math.min(sizeInBytes / 2, mSamples.length - mReadPosition);
+        if (count <= 0)
+            return 0;
+
+        if (mRealtime && !pace(mDelivered + count))
+            return 0;
+
+        for (int i = 0; i < count; i++) {
+            float sample = Math.max(-1.0f, Math.min(1.0f, mSamples[mReadPosition + i]));
+            buffer.putShort(i * 2, (short) Math.round(sample * 32767.0f));
+        }
+        mReadPosition += count;
+        mDelivered += count;
+        return count * 2;
+    }
+
+    @Override
+    public void stop() {
+        mSamples = null;
+    }
+
+    // Sleep until the given number of samples would have been captured, false when interrupted
+    private boolean pace(long samples) {
+        long dueNanos = mStartNanos + samples * 1_000_000_000L / Recorder.SAMPLE_RATE;
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos <= 0)
+            return true;
+
+        try {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static float[] readPcmFloat(String filePath) {
+        try (FileInputStream fileInputStream = new FileInputStream(filePath)) {
+            FileChannel channel = fileInputStream.getChannel();
+            ByteBuffer bytes = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+            }
+            bytes.flip();
+
+            float[] samples = new float[bytes.remaining() / 4];
+            bytes.asFloatBuffer().get(samples);
+            return samples;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading " + filePath, e);
+            return null;
+        }
+    }
+}
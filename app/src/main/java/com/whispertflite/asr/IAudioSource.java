@@ -0,0 +1,16 @@
+package com.whispertflite.asr;
+
+import java.nio.ByteBuffer;
+
+// Capture input of the Recorder: 16 kHz mono 16-bit little endian PCM.
+// read() blocks like AudioRecord in blocking mode, sources that replay data pace themselves.
+public interface IAudioSource {
+    // Returns false when the source cannot be started, the reason is logged
+    boolean start();
+
+    // Read up to sizeInBytes bytes into buffer from index 0, the buffer position is not changed.
+    // Returns the number of bytes read, 0 at the end of the stream or a negative error code.
+    int read(ByteBuffer buffer, int sizeInBytes);
+
+    void stop();
+}
@@ -2,5 +2,8 @@ package com.whispertflite.asr;
 
 public interface IRecorderListener {
     void onUpdateReceived(String message);
+
+    // Whole recording as 16 kHz mono PCM_FLOAT, called on the recording thread when it ends.
+    // The array is not reused by the Recorder.
     void onDataReceived(float[] samples);
 }
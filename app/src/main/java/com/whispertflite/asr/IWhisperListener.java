@@ -3,4 +3,10 @@ package com.whispertflite.asr;
 public interface IWhisperListener {
     void onUpdateReceived(String message);
     void onResultReceived(String result);
+
+    // Streaming mode: uncommitted tail of the latest hypothesis, replaces the previous partial
+    default void onPartialReceived(String partial) {}
+
+    // Streaming mode: newly committed text, to be appended to the text committed so far
+    default void onCommittedReceived(String committed) {}
 }
@@ -0,0 +1,139 @@
+package com.whispertflite.asr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// LocalAgreement-2 commit policy for streaming transcription.
+// Every hypothesis covers the whole current audio window. A word is committed once two consecutive
+// hypotheses agree on it and on everything before it; the rest of the latest hypothesis stays partial.
+// Words are compared case and punctuation insensitive, the text of the latest hypothesis is emitted.
+class LocalAgreement {
+    // Longest run of words matched between the end of the previous window and the start of the next one
+    private static final int MAX_OVERLAP_WORDS = 5;
+
+    private final StringBuilder mTranscript = new StringBuilder();
+    private List<String> mPrevious = Collections.emptyList();
+    private List<String> mLatest = Collections.emptyList();
+    private int mCommittedInWindow = 0;
+
+    // Tail of the committed text when the window was trimmed, its audio may still be at the window start
+    private final List<String> mContext = new ArrayList<>();
+
+    // Feed the hypothesis for the current window, returns the newly committed text ("" if none)
+    String insert(String hypothesis) {
+        List<String> words = dropContextOverlap(splitWords(hypothesis));
+
+        int agreed = commonPrefix(mPrevious, words);
+        String committed = "";
+        if (agreed > mCommittedInWindow) {
+            committed = join(words, mCommittedInWindow, agreed);
+            mCommittedInWindow = agreed;
+            appendTranscript(committed);
+        }
+
+        mPrevious = words;
+        mLatest = words;
+        return committed;
+    }
+
+    // Uncommitted tail of the latest hypothesis
+    String getPartial() {
+        return join(mLatest, Math.min(mCommittedInWindow, mLatest.size()), mLatest.size());
+    }
+
+    // Commit the rest of the latest hypothesis, used when the stream ends. Returns the newly committed text.
+    String flush() {
+        String committed = getPartial();
+        appendTranscript(committed);
+        restartWindow(Collections.emptyList());
+        return committed;
+    }
+
+    // The window was trimmed: the next hypotheses are matched against the committed tail, and the partial
+    // text stays uncommitted until a hypothesis of the new window agrees with it.
+    void trim() {
+        int committed = Math.min(mCommittedInWindow, mLatest.size());
+        restartWindow(new ArrayList<>(mLatest.subList(committed, mLatest.size())));
+    }
+
+    private void restartWindow(List<String> partial) {
+        mContext.clear();
+        List<String> tail = splitWords(mTranscript.toString());
+        mContext.addAll(tail.subList(Math.max(0, tail.size() - MAX_OVERLAP_WORDS), tail.size()));
+
+        mPrevious = partial;
+        mLatest = partial;
+        mCommittedInWindow = 0;
+    }
+
+    String getTranscript() {
+        return mTranscript.toString();
+    }
+
+    void reset() {
+        mTranscript.setLength(0);
+        mContext.clear();
+        mPrevious = Collections.emptyList();
+        mLatest = Collections.emptyList();
+        mCommittedInWindow = 0;
+    }
+
+    // Drop leading words that repeat the end of the previous window
+    private List<String> dropContextOverlap(List<String> words) {
+        int max = Math.min(mContext.size(), words.size());
+        for (int n = max; n > 0; n--) {
+            if (equalWords(mContext, mContext.size() - n, words, 0, n))
+                return words.subList(n, words.size());
+        }
+        return words;
+    }
+
+    private void appendTranscript(String text) {
+        if (text.isEmpty())
+            return;
+        if (mTranscript.length() > 0)
+            mTranscript.append(' ');
+        mTranscript.append(text);
+    }
+
+    private static int commonPrefix(List<String> a, List<String> b) {
+        int n = Math.min(a.size(), b.size());
+        int i = 0;
+        while (i < n && normalize(a.get(i)).equals(normalize(b.get(i))))
+            i++;
+        return i;
+    }
+
+    private static boolean equalWords(List<String> a, int aStart, List<String> b, int bStart, int count) {
+        for (int i = 0; i < count; i++) {
+            if (!normalize(a.get(aStart + i)).equals(normalize(b.get(bStart + i))))
+                return false;
+        }
+        return true;
+    }
+
+    static String normalize(String word) {
+        StringBuilder sb = new StringBuilder(word.length());
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (Character.isLetterOrDigit(c))
+                sb.append(c);
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    static List<String> splitWords(String text) {
+        List<String> words = new ArrayList<>();
+        for (String word : text.trim().split("\\s+")) {
+            if (!word.isEmpty())
+                words.add(word);
+        }
+        return words;
+    }
+
+    private static String join(List<String> words, int from, int to) {
+        return (from >= to) ? "" : String.join(" ", words.subList(from, to));
+    }
+}
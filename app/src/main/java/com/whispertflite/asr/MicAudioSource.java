@@ -0,0 +1,62 @@
+package com.whispertflite.asr;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import androidx.core.app.ActivityCompat;
+
+import java.nio.ByteBuffer;
+
+// Device microphone through AudioRecord
+public class MicAudioSource implements IAudioSource {
+    private static final String TAG = "MicAudioSource";
+
+    private final Context mContext;
+    private final int mMinBufferBytes;
+    private AudioRecord mAudioRecord = null;
+
+    // minBufferBytes: at least one read block, the AudioRecord buffer is never smaller than the platform minimum
+    public MicAudioSource(Context context, int minBufferBytes) {
+        mContext = context;
+        mMinBufferBytes = minBufferBytes;
+    }
+
+    @Override
+    public boolean start() {
+        if (ActivityCompat.checkSelfPermission(mContext, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+            Log.e(TAG, "AudioRecord permission is not granted");
+            return false;
+        }
+
+        int sampleRateInHz = Recorder.SAMPLE_RATE;
+        int channelConfig = AudioFormat.CHANNEL_IN_MONO;
+        int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
+        int audioSource = MediaRecorder.AudioSource.MIC;
+
+        int bufferSize = Math.max(AudioRecord.getMinBufferSize(sampleRateInHz, channelConfig, audioFormat), mMinBufferBytes);
+        mAudioRecord = new AudioRecord(audioSource, sampleRateInHz, channelConfig, audioFormat, bufferSize);
+        mAudioRecord.startRecording();
+        Log.d(TAG, "Audio recording started, buffer size: " + bufferSize);
+        return true;
+    }
+
+    // AudioRecord delivers native order PCM, which is little endian on Android devices
+    @Override
+    public int read(ByteBuffer buffer, int sizeInBytes) {
+        return mAudioRecord.read(buffer, sizeInBytes);
+    }
+
+    @Override
+    public void stop() {
+        if (mAudioRecord != null) {
+            mAudioRecord.stop();
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+    }
+}
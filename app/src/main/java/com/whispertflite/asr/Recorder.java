@@ -1,25 +1,33 @@
 package com.whispertflite.asr;
 
-import android.Manifest;
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
 import android.util.Log;
 
-import androidx.core.app.ActivityCompat;
-
-import com.whispertflite.utils.WaveUtil;
+import com.whispertflite.utils.Tracer;
+import com.whispertflite.utils.VoiceActivityDetector;
+import com.whispertflite.utils.WaveWriter;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Captures 16 kHz mono audio into a fixed-size circular PCM buffer, from the microphone or another
+// IAudioSource. start() records one utterance and stops at the end of speech, startContinuous() keeps capturing until
+// stop(), so overlapping windows can be taken with the snapshot methods and utterances can be started
+// with pre-roll audio through beginUtterance(). Utterances are delivered through
+// IRecorderListener.onDataReceived(), and optionally written to a WAV file while they are recorded.
 public class Recorder {
     public static final String TAG = "Recorder";
     public static final String MSG_RECORDING = "Recording...";
     public static final String MSG_RECORDING_DONE = "Recording done...!";
+    public static final String MSG_NO_SPEECH = "No speech detected";
+
+    public static final int SAMPLE_RATE = 16000;
+    public static final long NO_UTTERANCE = -1;
 
     private final Context mContext;
     private final AtomicBoolean mInProgress = new AtomicBoolean(false);
@@ -27,12 +35,44 @@ public class Recorder {
     private String mWavFilePath = null;
     private Thread mExecutorThread = null;
     private IRecorderListener mListener = null;
-
-    // Silence detection parameters
-    private static final int SILENCE_THRESHOLD = 3000; // Increased for robustness
-    private static final long SILENCE_DURATION_MS = 3000; // 3 seconds of silence
-    private static final int SAMPLE_RATE = 16000;
-    private static final long MAX_RECORDING_DURATION_MS = 20000; // 20 seconds max
+    private volatile IAudioSource mAudioSource = null;
+    private volatile long mTraceRequest = Tracer.NO_REQUEST;
+
+    // Endpointing parameters. An utterance is delivered from shortly before its first speech segment to
+    // shortly after its last one, and ends once the voice activity detector saw end-of-speech.
+    private static final long MAX_RECORDING_DURATION_MS = 20000; // 20 seconds of speech max
+    private static final int MAX_RECORDING_SAMPLES = (int) (MAX_RECORDING_DURATION_MS * SAMPLE_RATE / 1000);
+    private static final int LEAD_PAD_SAMPLES = SAMPLE_RATE / 5;  // 200 ms before speech
+    private static final int TAIL_PAD_SAMPLES = SAMPLE_RATE / 5;  // 200 ms after speech
+    private volatile int mEndOfSpeechMs = 800;
+    private volatile int mNoSpeechTimeoutMs = 3000;
+    private final VoiceActivityDetector mVad = new VoiceActivityDetector(SAMPLE_RATE);
+
+    // Circular capture buffer: sample at position p is in mRing[p % RING_SAMPLES]. Positions count samples
+    // since the capture started; mWritePosition is published after the samples below it were written.
+    // A reader keeps READ_BLOCK_SAMPLES away from the oldest sample, which the writer may be overwriting.
+    private static final int RING_SAMPLES = 30 * SAMPLE_RATE;
+    private static final int READ_BLOCK_SAMPLES = SAMPLE_RATE / 10;
+    private volatile short[] mRing = null;
+    private short[] mReadBlock = null;
+    private ByteBuffer mReadBuffer = null;  // AudioRecord reads into this direct buffer, see allocateBuffers()
+    private ShortBuffer mReadShorts = null;
+    private final AtomicLong mWritePosition = new AtomicLong(0);
+
+    // Utterance being recorded, NO_UTTERANCE when only capturing
+    private final AtomicLong mUtteranceStart = new AtomicLong(NO_UTTERANCE);
+    private volatile boolean mUtteranceNewSpeechOnly = false;
+    private volatile long mUtteranceStartNanos = 0;
+    private volatile boolean mContinuous = false;
+
+    // Live handoff of every captured block to Whisper streaming, see setStreamTarget()
+    private volatile Whisper mStreamTarget = null;
+    private final float[] mStreamBlock = new float[READ_BLOCK_SAMPLES];
+
+    // Optional WAV persistence: the utterance is appended block by block while it is recorded, owned by
+    // the capture thread
+    private volatile boolean mPersistToFile = true;
+    private WaveWriter mWaveWriter = null;
 
     public Recorder(Context context) {
         mContext = context;
@@ -42,25 +82,64 @@ public class Recorder {
         mListener = listener;
     }
 
+    // Recordings are delivered through IRecorderListener.onDataReceived(); when enabled they are also
+    // written to the file set by setFilePath() while recording, the file is complete when the listener is called
+    public void setPersistToFile(boolean persist) {
+        mPersistToFile = persist;
+    }
+
+    // Push every captured block to whisper.writeStreamBuffer() while recording, null to disable
+    public void setStreamTarget(Whisper whisper) {
+        mStreamTarget = whisper;
+    }
+
+    // Silence after speech that ends an utterance, applied from the next capture block
+    public void setEndOfSpeechMs(int endOfSpeechMs) {
+        mEndOfSpeechMs = endOfSpeechMs;
+    }
+
+    // A start() recording without speech ends after this time and delivers nothing. In continuous
+    // mode an utterance waits for speech until it is cancelled.
+    public void setNoSpeechTimeoutMs(int noSpeechTimeoutMs) {
+        mNoSpeechTimeoutMs = noSpeechTimeoutMs;
+    }
+
+    // Capture from another source than the microphone, e.g. FileAudioSource or SyntheticAudioSource.
+    // Applies from the next start(), null selects the microphone.
+    public void setAudioSource(IAudioSource source) {
+        mAudioSource = source;
+    }
+
     public void setFilePath(String wavFile) {
         mWavFilePath = wavFile;
         Log.d(TAG, "WAV file path set: " + mWavFilePath);
     }
 
+    // Record one utterance, capture stops when it ends
     public void start() {
-        if (mInProgress.get()) {
+        startCapture(false);
+    }
+
+    // Capture until stop(), utterances are recorded with beginUtterance()
+    public void startContinuous() {
+        startCapture(true);
+    }
+
+    private void startCapture(boolean continuous) {
+        if (!mInProgress.compareAndSet(false, true)) {
             Log.d(TAG, "Recording is already in progress...");
             return;
         }
 
+        mContinuous = continuous;
         mExecutorThread = new Thread(() -> {
-            mInProgress.set(true);
             threadFunction();
             mInProgress.set(false);
-        });
+        }, "RecorderCapture");
         mExecutorThread.start();
     }
 
+    // Stop capturing, an utterance in progress is delivered first
     public void stop() {
         mInProgress.set(false);
         try {
@@ -79,6 +158,91 @@ public class Recorder {
         return mInProgress.get();
     }
 
+    // Stop recording, an open WAV file is completed first
+    public void release() {
+        stop();
+    }
+
+    // Trace request id of the latest utterance, see Tracer
+    public long getTraceRequest() {
+        return mTraceRequest;
+    }
+
+    // Number of samples captured since capture started, the position of the next sample
+    public long getPosition() {
+        return mWritePosition.get();
+    }
+
+    // Oldest position that can still be read
+    public long getOldestPosition() {
+        return Math.max(0, mWritePosition.get() - RING_SAMPLES + READ_BLOCK_SAMPLES);
+    }
+
+    // Start recording an utterance from an earlier position (pre-roll), clamped to the buffered audio.
+    // It ends like a start() recording, at end-of-speech or after MAX_RECORDING_DURATION_MS of speech.
+    public void beginUtterance(long fromPosition) {
+        beginUtterance(fromPosition, false);
+    }
+
+    // With newSpeechOnly, only speech segments starting at fromPosition or later count. A segment that is
+    // still running at that point, such as the echo of our own TTS output, is ignored instead of being
+    // recorded from the pre-roll start.
+    public void beginUtterance(long fromPosition, boolean newSpeechOnly) {
+        long position = Math.min(Math.max(fromPosition, getOldestPosition()), getPosition());
+        mTraceRequest = Tracer.newRequest();
+        mUtteranceStartNanos = Tracer.begin();
+        mUtteranceNewSpeechOnly = newSpeechOnly;
+        mUtteranceStart.set(position);
+    }
+
+    // Drop the utterance in progress without delivering it
+    public void cancelUtterance() {
+        mUtteranceStart.set(NO_UTTERANCE);
+    }
+
+    public boolean isUtteranceInProgress() {
+        return mUtteranceStart.get() != NO_UTTERANCE;
+    }
+
+    // Copy of the last numSamples captured samples (fewer if not yet captured) as PCM_FLOAT
+    public float[] snapshotLast(int numSamples) {
+        return snapshotSince(getPosition() - numSamples);
+    }
+
+    // Copy of the samples captured since fromPosition as PCM_FLOAT, starting at getOldestPosition() at most
+    public float[] snapshotSince(long fromPosition) {
+        long end = getPosition();
+        long start = Math.max(fromPosition, getOldestPosition());
+        float[] samples = new float[(int) Math.max(0, end - start)];
+        int count = snapshot(start, samples, 0, samples.length);
+        return (count == samples.length) ? samples : Arrays.copyOf(samples, count);
+    }
+
+    // Copy up to maxSamples samples from fromPosition (or the oldest buffered one) into dst as PCM_FLOAT.
+    // Returns the number of samples copied, which start at max(fromPosition, getOldestPosition()).
+    public int snapshot(long fromPosition, float[] dst, int offset, int maxSamples) {
+        short[] ring = mRing;
+        if (ring == null)
+            return 0;
+
+        while (true) {
+            long end = mWritePosition.get();
+            long start = Math.max(fromPosition, Math.max(0, end - RING_SAMPLES + READ_BLOCK_SAMPLES));
+            int count = (int) Math.max(0, Math.min(maxSamples, end - start));
+
+            int slot = (int) (start % RING_SAMPLES);
+            for (int i = 0; i < count; i++) {
+                dst[offset + i] = ring[slot] / 32768.0f;
+                if (++slot == RING_SAMPLES)
+                    slot = 0;
+            }
+
+            // Retry if the writer got close enough to overwrite the copied samples meanwhile
+            if (start >= mWritePosition.get() - RING_SAMPLES + READ_BLOCK_SAMPLES)
+                return count;
+        }
+    }
+
     private void sendUpdate(String message) {
         if (mListener != null) {
             mListener.onUpdateReceived(message);
@@ -94,107 +258,238 @@ public class Recorder {
 
     private void threadFunction() {
         try {
-            if (ActivityCompat.checkSelfPermission(mContext, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
-                Log.e(TAG, "AudioRecord permission is not granted");
-                sendUpdate("Permission denied for audio recording");
-                return;
-            }
-
-            sendUpdate(MSG_RECORDING);
-
             int channels = 1;
             int bytesPerSample = 2;
-            int sampleRateInHz = 16000;
-            int channelConfig = AudioFormat.CHANNEL_IN_MONO;
-            int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
-            int audioSource = MediaRecorder.AudioSource.MIC;
 
-            int bufferSize = AudioRecord.getMinBufferSize(sampleRateInHz, channelConfig, audioFormat);
-            AudioRecord audioRecord = new AudioRecord(audioSource, sampleRateInHz, channelConfig, audioFormat, bufferSize);
-            audioRecord.startRecording();
-            Log.d(TAG, "Audio recording started, buffer size: " + bufferSize);
+            IAudioSource source = mAudioSource;
+            if (source == null)
+                source = new MicAudioSource(mContext, READ_BLOCK_SAMPLES * bytesPerSample);
+            if (!source.start()) {
+                sendUpdate("Failed to start audio capture");
+                return;
+            }
 
-            int bufferSize30Sec = sampleRateInHz * bytesPerSample * channels * 30;
-            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize30Sec);
-            int totalBytesRead = 0;
+            // A new capture starts with an empty ring, the detector counts positions from the same origin
+            allocateBuffers();
+            mWritePosition.set(0);
+            mVad.reset();
+            if (!mContinuous) {
+                sendUpdate(MSG_RECORDING);
+                beginUtterance(0);
+            }
 
-            byte[] audioData = new byte[bufferSize];
-            long silenceStartTime = -1;
-            boolean isSilent = false;
-            long recordingStartTime = System.currentTimeMillis();
+            // Nothing below allocates per read: blocks are copied into the ring, the detector works in
+            // place and durations are counted in samples
+            long trackedUtterance = NO_UTTERANCE;
+            long speechStart = NO_UTTERANCE;
+            long previousSegmentEnd = VoiceActivityDetector.NO_POSITION;
+            boolean newSpeechOnly = false;
 
             while (mInProgress.get()) {
-                // Check for maximum recording duration
-                if (System.currentTimeMillis() - recordingStartTime >= MAX_RECORDING_DURATION_MS) {
-                    Log.d(TAG, "Maximum recording duration reached, stopping");
-                    mInProgress.set(false);
+                int bytesRead = source.read(mReadBuffer, READ_BLOCK_SAMPLES * bytesPerSample);
+                if (bytesRead == 0) {
+                    Log.d(TAG, "End of audio stream");
+                    break;
+                } else if (bytesRead < 0) {
+                    Log.e(TAG, "Audio read error: " + bytesRead);
+                    sendUpdate("Error reading audio data");
                     break;
                 }
+                int samplesRead = bytesRead / bytesPerSample;
+                mReadShorts.clear();
+                mReadShorts.get(mReadBlock, 0, samplesRead);
+
+                long position = writeRing(mReadBlock, samplesRead);
+                streamBlock(mReadBlock, samplesRead);
+
+                // The noise floor is tracked between utterances too
+                mVad.setHangoverMs(mEndOfSpeechMs);
+                mVad.process(mReadBlock, samplesRead);
+
+                long utteranceStart = mUtteranceStart.get();
+                if (utteranceStart != trackedUtterance)
+                    discardWave();
+                if (utteranceStart == NO_UTTERANCE)
+                    continue;
+                if (utteranceStart != trackedUtterance) {
+                    trackedUtterance = utteranceStart;
+                    speechStart = NO_UTTERANCE;
+                    newSpeechOnly = mUtteranceNewSpeechOnly;
+                    previousSegmentEnd = mVad.isSpeech() ? VoiceActivityDetector.NO_POSITION : mVad.getSegmentEnd();
+                }
 
-                int bytesRead = audioRecord.read(audioData, 0, bufferSize);
-                if (bytesRead > 0) {
-                    buffer.put(audioData, 0, bytesRead);
-                    totalBytesRead += bytesRead;
-                    Log.v(TAG, "Read " + bytesRead + " bytes, total: " + totalBytesRead);
-
-                    // Convert byte array to short array for amplitude calculation
-                    short[] samples = new short[bytesRead / 2];
-                    ByteBuffer.wrap(audioData).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+                // First speech of the utterance. A segment running when it began counts from the pre-roll
+                // start unless newSpeechOnly is set, one that had already ended (such as the wake word) does not.
+                if (speechStart == NO_UTTERANCE
+                        && (mVad.isSpeech() || mVad.getSegmentEnd() != previousSegmentEnd)
+                        && (!newSpeechOnly || mVad.getSegmentStart() >= utteranceStart)) {
+                    speechStart = Math.max(utteranceStart, mVad.getSegmentStart() - LEAD_PAD_SAMPLES);
+                    Log.d(TAG, "Speech detected, noise floor " + mVad.getNoiseFloorDb() + " dBFS");
+                    sendUpdate(MSG_RECORDING);
+                    openWave(speechStart, position, channels, bytesPerSample);
+                } else if (mWaveWriter != null) {
+                    appendWave(bytesRead);
+                }
 
-                    // Calculate RMS amplitude
-                    double rms = 0;
-                    for (short sample : samples) {
-                        rms += sample * sample;
-                    }
-                    rms = Math.sqrt(rms / samples.length);
-                    Log.v(TAG, "RMS amplitude: " + rms);
-
-                    // Silence detection
-                    if (rms < SILENCE_THRESHOLD) {
-                        if (!isSilent) {
-                            silenceStartTime = System.currentTimeMillis();
-                            isSilent = true;
-                            Log.d(TAG, "Silence detected, starting timer at " + silenceStartTime);
-                        } else if (System.currentTimeMillis() - silenceStartTime >= SILENCE_DURATION_MS) {
-                            Log.d(TAG, "3 seconds of silence detected, stopping recording");
-                            mInProgress.set(false);
-                            break; // Exit loop immediately
-                        }
-                    } else {
-                        isSilent = false;
-                        silenceStartTime = -1;
-                        sendUpdate(MSG_RECORDING);
-                        Log.v(TAG, "Speech detected, resetting silence timer");
+                if (speechStart == NO_UTTERANCE) {
+                    if (!mContinuous && position - utteranceStart >= (long) mNoSpeechTimeoutMs * SAMPLE_RATE / 1000) {
+                        Log.d(TAG, "No speech detected, ending recording");
+                        mUtteranceStart.compareAndSet(utteranceStart, NO_UTTERANCE);
+                        sendUpdate(MSG_NO_SPEECH);
+                        break;
                     }
-                } else {
-                    Log.e(TAG, "AudioRecord error, bytes read: " + bytesRead);
-                    sendUpdate("Error reading audio data");
-                    break;
+                    continue;
                 }
-            }
 
-            audioRecord.stop();
-            audioRecord.release();
-            Log.d(TAG, "Audio recording stopped, total bytes: " + totalBytesRead);
+                if (!mVad.isSpeech() && mVad.getSegmentEnd() > speechStart) {
+                    Log.d(TAG, "End of speech detected, ending utterance");
+                    long end = Math.min(position, mVad.getSegmentEnd() + TAIL_PAD_SAMPLES);
+                    endUtterance(utteranceStart, speechStart, end, bytesPerSample);
+                } else if (position - speechStart >= MAX_RECORDING_SAMPLES) {
+                    Log.d(TAG, "Maximum recording duration reached, ending utterance");
+                    endUtterance(utteranceStart, speechStart, position, bytesPerSample);
+                } else {
+                    continue;
+                }
 
-            // Trim buffer to actual size
-            if (totalBytesRead > 0) {
-                byte[] trimmedBuffer = new byte[totalBytesRead];
-                buffer.rewind();
-                buffer.get(trimmedBuffer, 0, totalBytesRead);
+                if (!mContinuous)
+                    break;
+            }
 
-                // Save recording buffer in WAV file
-                WaveUtil.createWaveFile(mWavFilePath, trimmedBuffer, sampleRateInHz, channels, bytesPerSample);
-                Log.d(TAG, "WAV file saved: " + mWavFilePath);
+            source.stop();
+            Log.d(TAG, "Audio recording stopped, total samples: " + mWritePosition.get());
 
-                sendUpdate(MSG_RECORDING_DONE);
-            } else {
-                Log.e(TAG, "No audio data recorded");
-                sendUpdate("Error: No audio data recorded");
+            // Deliver what was recorded when stopped in the middle of an utterance with speech
+            long utteranceStart = mUtteranceStart.get();
+            if (utteranceStart != NO_UTTERANCE) {
+                if (utteranceStart == trackedUtterance && speechStart != NO_UTTERANCE) {
+                    endUtterance(utteranceStart, speechStart, mWritePosition.get(), bytesPerSample);
+                } else {
+                    mUtteranceStart.compareAndSet(utteranceStart, NO_UTTERANCE);
+                    sendUpdate(MSG_NO_SPEECH);
+                }
             }
+            discardWave();
         } catch (Exception e) {
             Log.e(TAG, "Recording error", e);
             sendUpdate("Error: " + e.getMessage());
+            discardWave();
+        }
+    }
+
+    // Append a block to the ring and publish it, returns the new write position
+    private long writeRing(short[] block, int length) {
+        long position = mWritePosition.get();
+        int slot = (int) (position % RING_SAMPLES);
+        int first = Math.min(length, RING_SAMPLES - slot);
+        System.arraycopy(block, 0, mRing, slot, first);
+        System.arraycopy(block, first, mRing, 0, length - first);
+        mWritePosition.set(position + length);
+        return position + length;
+    }
+
+    private void streamBlock(short[] block, int length) {
+        Whisper streamTarget = mStreamTarget;
+        if (streamTarget == null)
+            return;
+
+        for (int i = 0; i < length; i++)
+            mStreamBlock[i] = block[i] / 32768.0f;
+        streamTarget.writeStreamBuffer(mStreamBlock, 0, length);
+    }
+
+    // Complete the WAV file (a header patch) and hand the utterance over in memory
+    private void endUtterance(long utteranceStart, long from, long to, int bytesPerSample) {
+        if (!mUtteranceStart.compareAndSet(utteranceStart, NO_UTTERANCE))
+            return;
+
+        long request = mTraceRequest;
+        Tracer.end(Tracer.SPAN_CAPTURE, request, mUtteranceStartNanos);
+
+        float[] samples = new float[(int) Math.max(0, to - from)];
+        int count = snapshot(from, samples, 0, samples.length);
+        if (count < samples.length)
+            samples = Arrays.copyOf(samples, count);
+        if (samples.length == 0) {
+            Log.e(TAG, "No audio data recorded");
+            sendUpdate("Error: No audio data recorded");
+            discardWave();
+            return;
         }
+
+        closeWave((long) samples.length * bytesPerSample, request);
+        sendData(samples);
+        sendUpdate(MSG_RECORDING_DONE);
+    }
+
+    // Start the WAV file of an utterance with the samples already captured since from
+    private void openWave(long from, long to, int channels, int bytesPerSample) {
+        String wavFilePath = mWavFilePath;
+        if (!mPersistToFile || wavFilePath == null)
+            return;
+
+        try {
+            mWaveWriter = new WaveWriter(wavFilePath, SAMPLE_RATE, channels, bytesPerSample);
+            from = Math.max(from, getOldestPosition());
+            while (from < to) {
+                int slot = (int) (from % RING_SAMPLES);
+                int count = (int) Math.min(to - from, RING_SAMPLES - slot);
+                mWaveWriter.write(mRing, slot, count);
+                from += count;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write WAV file: " + wavFilePath, e);
+            discardWave();
+        }
+    }
+
+    // Append the block just read, straight from the capture buffer
+    private void appendWave(int bytesRead) {
+        try {
+            mReadBuffer.clear();
+            mReadBuffer.limit(bytesRead);
+            mWaveWriter.write(mReadBuffer);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write WAV file: " + mWaveWriter.getFilePath(), e);
+            discardWave();
+        }
+    }
+
+    // Cut the file to the delivered utterance, which ends before the hangover, and patch its header
+    private void closeWave(long dataSize, long request) {
+        if (mWaveWriter == null)
+            return;
+
+        long writeStart = Tracer.begin();
+        try {
+            mWaveWriter.truncate(dataSize);
+            mWaveWriter.close();
+            Log.d(TAG, "WAV file saved: " + mWaveWriter.getFilePath());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write WAV file: " + mWaveWriter.getFilePath(), e);
+            mWaveWriter.discard();
+        }
+        mWaveWriter = null;
+        Tracer.end(Tracer.SPAN_WAV_WRITE, request, writeStart);
+    }
+
+    // Drop the file of an utterance that was cancelled
+    private void discardWave() {
+        if (mWaveWriter != null) {
+            mWaveWriter.discard();
+            mWaveWriter = null;
+        }
+    }
+
+    // Capture buffers are allocated on first use and reused by every later capture
+    private void allocateBuffers() {
+        if (mRing != null)
+            return;
+
+        mRing = new short[RING_SAMPLES];
+        mReadBlock = new short[READ_BLOCK_SAMPLES];
+        // AudioRecord delivers native order PCM, which is the little endian WAV layout on Android devices
+        mReadBuffer = ByteBuffer.allocateDirect(READ_BLOCK_SAMPLES * 2).order(ByteOrder.LITTLE_ENDIAN);
+        mReadShorts = mReadBuffer.asShortBuffer();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,104 @@
+package com.whispertflite.asr;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// Generated capture input: background noise with speech-like bursts (a harmonic tone with syllable-rate
+// amplitude modulation) on a fixed schedule, deterministic for a given seed. Drives endpointing and load
+// tests without audio files; the bursts are not words, so transcripts are meaningless.
+public class SyntheticAudioSource implements IAudioSource {
+    private static final float PITCH_HZ = 140.0f;
+    private static final int HARMONICS = 8;
+    private static final float SYLLABLE_HZ = 4.0f;
+
+    private final boolean mRealtime;
+    private final long mSeed;
+    private float mNoiseLevel = 0.003f;   // about -50 dBFS
+    private float mSpeechLevel = 0.1f;    // about -20 dBFS
+    private int mSpeechMs = 2000;
+    private int mSilenceMs = 1500;
+    private long mDurationSamples = Long.MAX_VALUE;
+
+    private Random mRandom;
+    private long mPosition = 0;
+    private long mStartNanos = 0;
+
+    public SyntheticAudioSource(boolean realtime, long seed) {
+        mRealtime = realtime;
+        mSeed = seed;
+    }
+
+    // Alternate speechMs of bursts with silenceMs of noise, starting with silence
+    public void setSchedule(int speechMs, int silenceMs) {
+        mSpeechMs = speechMs;
+        mSilenceMs = silenceMs;
+    }
+
+    // Linear RMS levels relative to full scale
+    public void setLevels(float noiseLevel, float speechLevel) {
+        mNoiseLevel = noiseLevel;
+        mSpeechLevel = speechLevel;
+    }
+
+    // End of the stream, unlimited by default
+    public void setDurationMs(long durationMs) {
+        mDurationSamples = durationMs * Recorder.SAMPLE_RATE / 1000;
+    }
+
+    public long getDeliveredSamples() {
+        return mPosition;
+    }
+
+    @Override
+    public boolean start() {
+        mRandom = new Random(mSeed);
+        mPosition = 0;
+        mStartNanos = System.nanoTime();
+        return true;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int sizeInBytes) {
+        int count = (int) Math.min(sizeInBytes / 2, mDurationSamples - mPosition);
+        if (count <= 0)
+            return 0;
+
+        if (mRealtime) {
+            long waitNanos = mStartNanos + (mPosition + count) * 1_000_000_000L / Recorder.SAMPLE_RATE - System.nanoTime();
+            try {
+                if (waitNanos > 0)
+                    Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+        }
+
+        long period = (long) (mSpeechMs + mSilenceMs) * Recorder.SAMPLE_RATE / 1000;
+        long silence = (long) mSilenceMs * Recorder.SAMPLE_RATE / 1000;
+        for (int i = 0; i < count; i++) {
+            long t = mPosition + i;
+            double x = mRandom.nextGaussian() * mNoiseLevel;
+            if (t % period >= silence)
+                x += speech(t);
+            x = Math.max(-1.0, Math.min(1.0, x));
+            buffer.putShort(i * 2, (short) Math.round(x * 32767.0));
+        }
+        mPosition += count;
+        return count * 2;
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    private double speech(long t) {
+        double seconds = (double) t / Recorder.SAMPLE_RATE;
+        double x = 0.0;
+        for (int h = 1; h <= HARMONICS; h++)
+            x += Math.sin(2.0 * Math.PI * PITCH_HZ * h * seconds) / h;
+        double envelope = 0.5 + 0.5 * Math.sin(2.0 * Math.PI * SYLLABLE_HZ * seconds);
+        // The harmonic sum has an RMS of about 0.9
+        return x * envelope * mSpeechLevel * 1.1;
+    }
+}
@@ -0,0 +1,114 @@
+package com.whispertflite.asr;
+
+import com.whispertflite.utils.WhisperUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+// Joins the texts of overlapping audio chunks into one transcript.
+// The words spoken in the overlap appear at the end of one chunk and the start of the next; the longest
+// run of matching words (at least MIN_MATCH, so a lone "the" is not taken for an overlap) is kept once.
+// Words cut by a chunk edge may be garbled, so up to EDGE_WORDS words at either side of the seam may be skipped.
+// Ties are broken by the fewest skipped words, so the result only depends on the chunk texts.
+// Audio longer than one 30 s window is split with chunkCount()/chunk(), every path that transcribes
+// whole files or buffers uses the same chunks.
+public class TranscriptStitcher {
+    public static final int CHUNK_SAMPLES = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+    public static final int OVERLAP_SECONDS = 5;
+    private static final int STRIDE_SAMPLES = CHUNK_SAMPLES - OVERLAP_SECONDS * WhisperUtil.WHISPER_SAMPLE_RATE;
+    private static final int MAX_WORDS_PER_SECOND = 5;
+
+    private static final int EDGE_WORDS = 2;
+    private static final int MIN_MATCH = 2;
+
+    private TranscriptStitcher() {
+    }
+
+    // Number of 30 s chunks, overlapping by OVERLAP_SECONDS, that cover nSamples
+    public static int chunkCount(int nSamples) {
+        if (nSamples <= CHUNK_SAMPLES)
+            return 1;
+        return 1 + (nSamples - CHUNK_SAMPLES + STRIDE_SAMPLES - 1) / STRIDE_SAMPLES;
+    }
+
+    // Samples of chunk i, the input itself when it fits in one chunk
+    public static float[] chunk(float[] samples, int i) {
+        if (samples.length <= CHUNK_SAMPLES)
+            return samples;
+        int start = i * STRIDE_SAMPLES;
+        return Arrays.copyOfRange(samples, start, Math.min(samples.length, start + CHUNK_SAMPLES));
+    }
+
+    // Transcribe audio of any length one chunk at a time with a single window transcriber
+    public static String transcribe(float[] samples, Function<float[], String> transcribeWindow) {
+        int chunks = chunkCount(samples.length);
+        List<String> texts = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++)
+            texts.add(transcribeWindow.apply(chunk(samples, i)));
+        return stitch(texts);
+    }
+
+    // Join the texts of all chunks of one input, in order
+    public static String stitch(List<String> chunkTexts) {
+        return (chunkTexts.size() == 1) ? chunkTexts.get(0)
+                : stitch(chunkTexts, OVERLAP_SECONDS * MAX_WORDS_PER_SECOND);
+    }
+
+    // maxOverlapWords bounds the search, roughly the overlap duration times the speaking rate
+    static String stitch(List<String> chunkTexts, int maxOverlapWords) {
+        List<String> words = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (String text : chunkTexts) {
+            List<String> next = LocalAgreement.splitWords(text);
+            List<String> nextKeys = new ArrayList<>(next.size());
+            for (String word : next)
+                nextKeys.add(LocalAgreement.normalize(word));
+
+            int[] seam = findSeam(keys, nextKeys, maxOverlapWords);
+            int keepPrevious = keys.size() - seam[0];
+            words.subList(keepPrevious, words.size()).clear();
+            keys.subList(keepPrevious, keys.size()).clear();
+            words.addAll(next.subList(seam[1], next.size()));
+            keys.addAll(nextKeys.subList(seam[1], nextKeys.size()));
+        }
+        return String.join(" ", words);
+    }
+
+    // Returns {words dropped from the end of prev, words dropped from the start of next}
+    private static int[] findSeam(List<String> prev, List<String> next, int maxOverlapWords) {
+        int bestLength = 0;
+        int bestSkip = 0;
+        int[] seam = {0, 0};
+
+        for (int skipPrev = 0; skipPrev <= EDGE_WORDS; skipPrev++) {
+            for (int skipNext = 0; skipNext <= EDGE_WORDS; skipNext++) {
+                int skip = skipPrev + skipNext;
+                int maxLength = Math.min(maxOverlapWords,
+                        Math.min(prev.size() - skipPrev, next.size() - skipNext));
+
+                for (int length = maxLength; length >= MIN_MATCH; length--) {
+                    if (length < bestLength || (length == bestLength && skip >= bestSkip))
+                        break;
+                    if (matches(prev, prev.size() - skipPrev - length, next, skipNext, length)) {
+                        bestLength = length;
+                        bestSkip = skip;
+                        seam[0] = skipPrev;
+                        seam[1] = skipNext + length;
+                        break;
+                    }
+                }
+            }
+        }
+        return seam;
+    }
+
+    private static boolean matches(List<String> a, int aStart, List<String> b, int bStart, int length) {
+        for (int i = 0; i < length; i++) {
+            if (!a.get(aStart + i).equals(b.get(bStart + i)))
+                return false;
+        }
+        return true;
+    }
+}
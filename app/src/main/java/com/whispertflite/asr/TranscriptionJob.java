@@ -0,0 +1,41 @@
+package com.whispertflite.asr;
+
+import com.whispertflite.utils.Tracer;
+
+import java.util.concurrent.CompletableFuture;
+
+// A queued transcription request: either a WAV file or a buffer of 16 kHz mono samples.
+// Ordered by priority (higher first), then by submission order.
+class TranscriptionJob implements Comparable<TranscriptionJob> {
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    final String wavFilePath;
+    final float[] samples;
+    final int priority;
+    final long deadlineNanos;  // System.nanoTime() based, NO_DEADLINE if the job never expires
+    final long sequence;
+    final CompletableFuture<String> future = new CompletableFuture<>();
+
+    // Trace request of the submitting thread, and submission time for the queue wait span
+    final long traceRequest = Tracer.getRequest();
+    final long submitNanos = Tracer.begin();
+
+    TranscriptionJob(String wavFilePath, float[] samples, int priority, long timeoutMs, long sequence) {
+        this.wavFilePath = wavFilePath;
+        this.samples = samples;
+        this.priority = priority;
+        this.deadlineNanos = (timeoutMs > 0) ? System.nanoTime() + timeoutMs * 1_000_000L : NO_DEADLINE;
+        this.sequence = sequence;
+    }
+
+    boolean isExpired(long nowNanos) {
+        return deadlineNanos != NO_DEADLINE && nowNanos - deadlineNanos > 0;
+    }
+
+    @Override
+    public int compareTo(TranscriptionJob other) {
+        if (priority != other.priority)
+            return Integer.compare(other.priority, priority);
+        return Long.compare(sequence, other.sequence);
+    }
+}
@@ -4,13 +4,29 @@ import android.content.Context;
 import android.util.Log;
 
 import com.whispertflite.engine.IWhisperEngine;
+import com.whispertflite.engine.TranscriptionBatch;
 import com.whispertflite.engine.WhisperEngineNative;
+import com.whispertflite.utils.Tracer;
+import com.whispertflite.utils.WaveUtil;
+import com.whispertflite.utils.WhisperUtil;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Whisper {
     public static final String TAG = "Whisper";
@@ -20,38 +36,98 @@ public class Whisper {
     public static final String MSG_PROCESSING_DONE = "Processing done...!";
     public static final String MSG_FILE_NOT_FOUND = "Input file doesn't exist..!";
 
+    // Job priorities, higher runs first
+    public static final int PRIORITY_WAKE_WORD = 10;
+    public static final int PRIORITY_NORMAL = 20;
+    public static final int PRIORITY_CONVERSATION = 30;
+
     private final Context mContext;
-    private final AtomicBoolean mInProgress = new AtomicBoolean(false);
-    private final Object mAudioBufferQueueLock = new Object();  // Synchronization object
-    private final Object mWhisperEngineLock = new Object();  // Synchronization object
-    private final Queue<float[]> audioBufferQueue = new LinkedList<>();
+    private final AtomicInteger mRunningJobs = new AtomicInteger(0);
     private Thread mMicTranscribeThread = null;
 
-    // TODO: use WhisperEngine as per requirement
-//    private final IWhisperEngine mWhisperEngine = new WhisperEngine();
-    private final IWhisperEngine mWhisperEngine = new WhisperEngineNative();
-//    private final IWhisperEngine mWhisperEngine = new WhisperEngineTwoModel();
+    // Mic transcription queue: bounded ring of 30 s blocks, see AudioBlockRing. Allocated on first use.
+    private static final int MIC_BLOCK_SAMPLES = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+    private int mMicQueueCapacity = 4;
+    private AudioBlockRing.OverflowPolicy mMicOverflowPolicy = AudioBlockRing.OverflowPolicy.DROP_OLDEST;
+    private volatile AudioBlockRing mMicRing = null;
+    private final AtomicLong mMicProcessedCount = new AtomicLong(0);
+
+    // Streaming transcription: audio arrives in short blocks and a sliding window is re-transcribed every hop
+    private static final int STREAM_BLOCK_SAMPLES = WhisperUtil.WHISPER_SAMPLE_RATE / 10;
+    private static final int STREAM_QUEUE_BLOCKS = WhisperUtil.WHISPER_CHUNK_SIZE * 10;
+    private int mStreamHopMs = 1000;
+    private int mStreamMaxWindowMs = 15000;
+    private int mStreamKeepMs = 1000;
+    private Thread mStreamThread = null;
+    private volatile AudioBlockRing mStreamRing = null;
+    private final LocalAgreement mAgreement = new LocalAgreement();
+
+    // Engine pool: each engine is used by one job at a time, free engines wait in mFreeEngines
+    private final List<IWhisperEngine> mEngines = new ArrayList<>();
+    private final BlockingQueue<IWhisperEngine> mFreeEngines;
 
     private String mAction = null;
     private String mWavFilePath = null;
-    private Thread mExecutorThread = null;
     private IWhisperListener mUpdateListener = null;
 
+    // Transcription job scheduler: one long-lived worker per engine serving a priority queue
+    private final PriorityBlockingQueue<TranscriptionJob> mJobQueue = new PriorityBlockingQueue<>();
+    private final AtomicLong mJobSequence = new AtomicLong(0);
+    private final AtomicLong mExpiredJobCount = new AtomicLong(0);
+    private final TranscriptionJob mShutdownJob = new TranscriptionJob(null, null, Integer.MAX_VALUE, 0, -1);
+    private final List<Thread> mSchedulerThreads = new ArrayList<>();
+    private volatile boolean mReleased = false;  // set under mJobQueue
+
+    // Long audio: overlapping 30 s chunks fanned out over the engine pool, see transcribeSamples()
+    private ExecutorService mChunkExecutor = null;
+
     public Whisper(Context context) {
+        this(context, 1);
+    }
+
+    // enginePoolSize engines are created, so up to that many transcriptions run at once
+    public Whisper(Context context, int enginePoolSize) {
         mContext = context;
+        mFreeEngines = new ArrayBlockingQueue<>(enginePoolSize);
+        for (int i = 0; i < enginePoolSize; i++) {
+            IWhisperEngine engine = createEngine();
+            mEngines.add(engine);
+            mFreeEngines.add(engine);
+        }
+    }
+
+    // TODO: use WhisperEngine as per requirement
+    private IWhisperEngine createEngine() {
+//        return new WhisperEngine();
+        return new WhisperEngineNative();
+//        return new WhisperEngineTwoModel();
+    }
+
+    public int getEnginePoolSize() {
+        return mEngines.size();
     }
 
     public void setListener(IWhisperListener listener) {
         mUpdateListener = listener;
-        mWhisperEngine.setUpdateListener(mUpdateListener);
+        for (IWhisperEngine engine : mEngines)
+            engine.setUpdateListener(mUpdateListener);
     }
 
     public void loadModel(String modelPath, String vocabPath, boolean isMultilingual) {
         try {
-            mWhisperEngine.initialize(modelPath, vocabPath, isMultilingual);
+            for (IWhisperEngine engine : mEngines)
+                engine.initialize(modelPath, vocabPath, isMultilingual);
+        } catch (IOException e) {
+            Log.e(TAG, "Error...", e);
+        }
+    }
 
-            // Start thread for mic data transcription in realtime
-            startMicTranscriptionThread();
+    // Model and vocab mapped from the APK assets (or filesDir when not bundled), see AssetUtil.
+    // The engines share the mapped pages, nothing is copied.
+    public void loadModelFromAssets(String modelAsset, String vocabAsset, boolean isMultilingual) {
+        try {
+            for (IWhisperEngine engine : mEngines)
+                engine.initialize(mContext, modelAsset, vocabAsset, isMultilingual);
         } catch (IOException e) {
             Log.e(TAG, "Error...", e);
         }
@@ -65,36 +141,104 @@ public class Whisper {
         mWavFilePath = wavFile;
     }
 
+    // Transcribe the file set by setFilePath() with normal priority, the result goes to the listener
     public void start() {
-        if (mInProgress.get()) {
-            Log.d(TAG, "Execution is already in progress...");
-            return;
-        }
+        submitFile(mWavFilePath, PRIORITY_NORMAL, 0);
+    }
 
-        mExecutorThread = new Thread(() -> {
-            mInProgress.set(true);
-            threadFunction();
-            mInProgress.set(false);
-        });
-        mExecutorThread.start();
+    // Queue a WAV file for transcription. Jobs whose timeoutMs elapses before they start are discarded
+    // and their future fails with TimeoutException (timeoutMs <= 0 means no deadline).
+    // Results are delivered both through the returned future and the listener.
+    public CompletableFuture<String> submitFile(String wavFilePath, int priority, long timeoutMs) {
+        return submit(new TranscriptionJob(wavFilePath, null, priority, timeoutMs, mJobSequence.getAndIncrement()));
     }
 
-    public void stop() {
-        mInProgress.set(false);
+    // Queue 16 kHz mono samples for transcription, see submitFile()
+    public CompletableFuture<String> submitBuffer(float[] samples, int priority, long timeoutMs) {
+        return submit(new TranscriptionJob(null, samples, priority, timeoutMs, mJobSequence.getAndIncrement()));
+    }
+
+    // Pipelined batch transcription on one engine of the pool, see TranscriptionBatch.
+    // Waits for a free engine, which is returned to the pool once the batch is exhausted or closed.
+    public TranscriptionBatch transcribeFiles(List<String> wavFilePaths) throws InterruptedException {
+        IWhisperEngine engine = acquireEngine();
+        TranscriptionBatch batch;
         try {
-            if (mExecutorThread != null) {
-                mWhisperEngine.interrupt();
-                //mExecutorThread.interrupt();
-                mExecutorThread.join();
-                mExecutorThread = null;
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            batch = engine.transcribeFiles(wavFilePaths);
+        } catch (RuntimeException e) {
+            releaseEngine(engine);
+            throw e;
+        }
+        batch.setOnClose(() -> releaseEngine(engine));
+        return batch;
+    }
+
+    // Cancel all queued jobs, a job that is already running completes normally
+    public void stop() {
+        cancelPendingJobs();
+        for (IWhisperEngine engine : mEngines)
+            engine.interrupt();
+    }
+
+    // Stop the scheduler, chunk, mic transcription and streaming threads, then free the engines.
+    // Queued jobs are cancelled and the call returns at once; a running job may take seconds to finish,
+    // so the threads are joined and the engines freed on a background thread.
+    public void release() {
+        List<Thread> schedulers;
+        synchronized (mJobQueue) {
+            if (mReleased)
+                return;
+            mReleased = true;
+            schedulers = new ArrayList<>(mSchedulerThreads);
+            mSchedulerThreads.clear();
         }
+
+        cancelPendingJobs();
+        for (int i = 0; i < schedulers.size(); i++)
+            mJobQueue.add(mShutdownJob);
+
+        Thread releaseThread = new Thread(() -> {
+            for (Thread scheduler : schedulers) {
+                try {
+                    scheduler.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            stopMicTranscriptionThread();
+            stopStreaming();
+
+            synchronized (this) {
+                if (mChunkExecutor != null) {
+                    mChunkExecutor.shutdown();
+                    mChunkExecutor = null;
+                }
+            }
+
+            // Chunks of a cancelled job and open batches still hold engines, every engine is freed once it is back
+            try {
+                for (int i = 0; i < mEngines.size(); i++)
+                    acquireEngine().release();
+                Log.d(TAG, "Engines released");
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted before all engines were released");
+            }
+        }, "WhisperRelease");
+        releaseThread.start();
     }
 
     public boolean isInProgress() {
-        return mInProgress.get();
+        return mRunningJobs.get() > 0 || !mJobQueue.isEmpty();
+    }
+
+    public int getPendingJobCount() {
+        return mJobQueue.size();
+    }
+
+    // Number of jobs discarded because their deadline passed before they started
+    public long getExpiredJobCount() {
+        return mExpiredJobCount.get();
     }
 
     private void sendUpdate(String message) {
@@ -107,87 +251,412 @@ public class Whisper {
             mUpdateListener.onResultReceived(message);
     }
 
-    private void threadFunction() {
+    private CompletableFuture<String> submit(TranscriptionJob job) {
+        synchronized (mJobQueue) {
+            if (mReleased) {
+                job.future.completeExceptionally(new IllegalStateException("Whisper is released"));
+                return job.future;
+            }
+            while (mSchedulerThreads.size() < mEngines.size()) {
+                Thread thread = new Thread(this::schedulerFunction, "WhisperScheduler-" + mSchedulerThreads.size());
+                mSchedulerThreads.add(thread);
+                thread.start();
+            }
+            mJobQueue.add(job);
+        }
+        return job.future;
+    }
+
+    private void cancelPendingJobs() {
+        TranscriptionJob job;
+        while ((job = mJobQueue.poll()) != null) {
+            if (job != mShutdownJob)
+                job.future.cancel(false);
+        }
+    }
+
+    private void schedulerFunction() {
+        while (true) {
+            TranscriptionJob job;
+            try {
+                job = mJobQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (job == mShutdownJob)
+                break;
+            if (job.future.isDone())
+                continue;
+
+            if (job.isExpired(System.nanoTime())) {
+                mExpiredJobCount.incrementAndGet();
+                job.future.completeExceptionally(new TimeoutException("Deadline passed before the job started"));
+                Log.d(TAG, "Discarded stale job, priority: " + job.priority);
+                continue;
+            }
+
+            mRunningJobs.incrementAndGet();
+            runJob(job);
+            mRunningJobs.decrementAndGet();
+        }
+        Log.d(TAG, "Scheduler thread finished");
+    }
+
+    // Take a free engine from the pool, waiting if all of them are busy
+    private IWhisperEngine acquireEngine() throws InterruptedException {
+        return mFreeEngines.take();
+    }
+
+    private void releaseEngine(IWhisperEngine engine) {
+        mFreeEngines.add(engine);
+    }
+
+    private void runJob(TranscriptionJob job) {
+        Tracer.setRequest(job.traceRequest);
+        Tracer.end(Tracer.SPAN_QUEUE_WAIT, job.submitNanos);
+        long jobStart = Tracer.begin();
         try {
             // Get Transcription
-            if (mWhisperEngine.isInitialized()) {
-                Log.d(TAG, "WaveFile: " + mWavFilePath);
-
-                File waveFile = new File(mWavFilePath);
-                if (waveFile.exists()) {
-                    long startTime = System.currentTimeMillis();
-                    sendUpdate(MSG_PROCESSING);
-
-//                    String result = "";
-//                    if (mAction.equals(ACTION_TRANSCRIBE))
-//                        result = mWhisperEngine.getTranscription(mWavFilePath);
-//                    else if (mAction == ACTION_TRANSLATE)
-//                        result = mWhisperEngine.getTranslation(mWavFilePath);
-
-                    // Get result from wav file
-                    synchronized (mWhisperEngineLock) {
-                        String result = mWhisperEngine.transcribeFile(mWavFilePath);
-                        sendResult(result);
-                        Log.d(TAG, "Result len: " + result.length() + ", Result: " + result);
-                    }
-
-                    sendUpdate(MSG_PROCESSING_DONE);
+            if (!mEngines.get(0).isInitialized()) {
+                job.future.completeExceptionally(new IllegalStateException("Engine is not initialized"));
+                return;
+            }
 
-                    // Calculate time required for transcription
-                    long endTime = System.currentTimeMillis();
-                    long timeTaken = endTime - startTime;
-                    Log.d(TAG, "Time Taken for transcription: " + timeTaken + "ms");
-                } else {
+            if (job.wavFilePath != null) {
+                Log.d(TAG, "WaveFile: " + job.wavFilePath);
+                if (!new File(job.wavFilePath).exists()) {
                     sendUpdate(MSG_FILE_NOT_FOUND);
+                    job.future.completeExceptionally(new FileNotFoundException(job.wavFilePath));
+                    return;
                 }
             }
+
+            long startTime = System.currentTimeMillis();
+            sendUpdate(MSG_PROCESSING);
+
+            // Get result from wav file or buffer
+            float[] samples = job.samples;
+            if (job.wavFilePath != null) {
+                long readStart = Tracer.begin();
+                samples = WaveUtil.getSamples(job.wavFilePath);
+                Tracer.end(Tracer.SPAN_WAV_READ, readStart);
+            }
+            String result = transcribeSamples(samples);
+
+            // Deliver outside of the engine, so listeners never hold up other jobs
+            long sendStart = Tracer.begin();
+            sendResult(result);
+            job.future.complete(result);
+            Tracer.end(Tracer.SPAN_SEND_RESULT, sendStart);
+            Log.d(TAG, "Result len: " + result.length() + ", Result: " + result);
+
+            sendUpdate(MSG_PROCESSING_DONE);
+
+            // Calculate time required for transcription
+            long endTime = System.currentTimeMillis();
+            long timeTaken = endTime - startTime;
+            Log.d(TAG, "Time Taken for transcription: " + timeTaken + "ms");
         } catch (Exception e) {
             Log.e(TAG, "Error...", e);
             sendUpdate(e.getMessage());
+            job.future.completeExceptionally(e);
+        } finally {
+            Tracer.end(Tracer.SPAN_JOB, jobStart);
         }
     }
 
-    // Write buffer in Queue
-    public void writeBuffer(float[] samples) {
-        synchronized (mAudioBufferQueueLock) {
-            audioBufferQueue.add(samples);
-            mAudioBufferQueueLock.notify(); // Notify waiting threads
-        }
-    }
+    // Audio up to 30 s runs on one engine. Longer audio is split into 30 s chunks overlapping by
+    // TranscriptStitcher.OVERLAP_SECONDS, transcribed in parallel across the engine pool and stitched in order.
+    private String transcribeSamples(float[] samples) throws Exception {
+        int chunkCount = TranscriptStitcher.chunkCount(samples.length);
+        if (chunkCount == 1)
+            return transcribeChunk(samples);
+        Log.d(TAG, "Transcribing " + samples.length + " samples in " + chunkCount + " chunks");
 
-    // Read buffer from Queue
-    private float[] readBuffer() {
-        synchronized (mAudioBufferQueueLock) {
-            while (audioBufferQueue.isEmpty()) {
+        ExecutorService executor = getChunkExecutor();
+        long request = Tracer.getRequest();
+        List<CompletableFuture<String>> chunks = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            int index = i;
+            chunks.add(CompletableFuture.supplyAsync(() -> {
+                Tracer.setRequest(request);
                 try {
-                    // Wait for the queue to have data
-                    mAudioBufferQueueLock.wait();
+                    return transcribeChunk(TranscriptStitcher.chunk(samples, index));
                 } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+                    throw new CompletionException(e);
                 }
-            }
-            return audioBufferQueue.poll();
+            }, executor));
+        }
+
+        List<String> texts = new ArrayList<>(chunkCount);
+        try {
+            for (CompletableFuture<String> chunk : chunks)
+                texts.add(chunk.get());
+        } catch (ExecutionException e) {
+            for (CompletableFuture<String> chunk : chunks)
+                chunk.cancel(false);
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
         }
+        return TranscriptStitcher.stitch(texts);
+    }
+
+    private String transcribeChunk(float[] chunk) throws InterruptedException {
+        long waitStart = Tracer.begin();
+        IWhisperEngine engine = acquireEngine();
+        Tracer.end(Tracer.SPAN_ENGINE_WAIT, waitStart);
+        try {
+            return engine.transcribeBuffer(chunk);
+        } finally {
+            releaseEngine(engine);
+        }
+    }
+
+    // One worker per engine, created on first use
+    private synchronized ExecutorService getChunkExecutor() {
+        if (mChunkExecutor == null)
+            mChunkExecutor = Executors.newFixedThreadPool(mEngines.size());
+        return mChunkExecutor;
+    }
+
+    // Queue size and overflow policy for mic data, applied when the transcription thread (re)starts
+    public void setMicQueueConfig(int capacity, AudioBlockRing.OverflowPolicy policy) {
+        mMicQueueCapacity = capacity;
+        mMicOverflowPolicy = policy;
+    }
+
+    public int getMicQueueDepth() {
+        AudioBlockRing ring = mMicRing;
+        return (ring != null) ? ring.getDepth() : 0;
+    }
+
+    public long getMicDroppedCount() {
+        AudioBlockRing ring = mMicRing;
+        return (ring != null) ? ring.getDroppedCount() : 0;
+    }
+
+    public long getMicProcessedCount() {
+        return mMicProcessedCount.get();
+    }
+
+    // Write buffer in Queue, samples beyond 30 s are truncated. The queue and its transcription thread are
+    // created by the first write after the model is loaded.
+    public void writeBuffer(float[] samples) {
+        AudioBlockRing ring = mMicRing;
+        if (ring == null && mEngines.get(0).isInitialized())
+            ring = startMicTranscriptionThread();
+        if (ring == null || !ring.write(samples, 0, samples.length))
+            Log.d(TAG, "Mic transcription is not running, buffer dropped");
     }
 
     // Mic data transcription thread in realtime
-    private void startMicTranscriptionThread() {
-        if(mMicTranscribeThread == null) {
+    private synchronized AudioBlockRing startMicTranscriptionThread() {
+        if (mMicTranscribeThread == null && !mReleased) {
+            AudioBlockRing ring = new AudioBlockRing(mMicQueueCapacity, MIC_BLOCK_SAMPLES, mMicOverflowPolicy);
+            mMicRing = ring;
+
             // Create a transcribe thread
             mMicTranscribeThread = new Thread(() -> {
-                while (true) {
-                    float[] samples = readBuffer();
-                    if (samples != null) {
-                        synchronized (mWhisperEngineLock) {
-                            String result = mWhisperEngine.transcribeBuffer(samples);
-                            sendResult(result);
+                // Engines pad to 30 s with zeros, so a zero-filled tail is equivalent to a shorter buffer.
+                // take() leaves samples beyond length as they were (clearing torn copies), so only the
+                // rest of the previous block needs clearing.
+                float[] samples = new float[ring.getBlockSamples()];
+                int prevLength = 0;
+                int length;
+                while ((length = ring.take(samples)) >= 0) {
+                    if (length < prevLength)
+                        Arrays.fill(samples, length, prevLength, 0.0f);
+                    prevLength = length;
+                    Tracer.beginRequest();
+
+                    String result;
+                    try {
+                        IWhisperEngine engine = acquireEngine();
+                        try {
+                            result = engine.transcribeBuffer(samples);
+                        } finally {
+                            releaseEngine(engine);
                         }
+                    } catch (InterruptedException e) {
+                        break;
                     }
+
+                    sendResult(result);
+                    mMicProcessedCount.incrementAndGet();
                 }
-            });
+                Log.d(TAG, "Mic transcription thread finished");
+            }, "WhisperMicTranscribe");
 
             // Start the transcribe thread
             mMicTranscribeThread.start();
         }
+        return mMicRing;
+    }
+
+    // Stop the mic transcription thread, pending buffers are discarded
+    public synchronized void stopMicTranscriptionThread() {
+        Thread thread = mMicTranscribeThread;
+        AudioBlockRing ring = mMicRing;
+        if (thread == null || ring == null)
+            return;
+
+        ring.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mMicRing = null;
+        mMicTranscribeThread = null;
+    }
+
+    // Streaming window parameters, applied when streaming (re)starts.
+    // hopMs: audio between two transcriptions of the window, maxWindowMs: window length (at most 30 s)
+    // at which the window is trimmed, keepMs: audio kept at the start of the window after a trim.
+    public void setStreamingConfig(int hopMs, int maxWindowMs, int keepMs) {
+        int limitMs = WhisperUtil.WHISPER_CHUNK_SIZE * 1000;
+        if (hopMs <= 0 || maxWindowMs > limitMs || keepMs < 0 || keepMs + hopMs > maxWindowMs)
+            throw new IllegalArgumentException("Invalid streaming config: " + hopMs + ", " + maxWindowMs + ", " + keepMs);
+
+        mStreamHopMs = hopMs;
+        mStreamMaxWindowMs = maxWindowMs;
+        mStreamKeepMs = keepMs;
+    }
+
+    // Start streaming transcription of 16 kHz mono samples pushed through writeStreamBuffer().
+    // Partial and committed text is delivered through the listener, see LocalAgreement.
+    public void startStreaming() {
+        if (mStreamThread != null || mReleased)
+            return;
+
+        AudioBlockRing ring = new AudioBlockRing(STREAM_QUEUE_BLOCKS, STREAM_BLOCK_SAMPLES, AudioBlockRing.OverflowPolicy.DROP_OLDEST);
+        int hopSamples = mStreamHopMs * WhisperUtil.WHISPER_SAMPLE_RATE / 1000;
+        int windowSamples = mStreamMaxWindowMs * WhisperUtil.WHISPER_SAMPLE_RATE / 1000;
+        int keepSamples = mStreamKeepMs * WhisperUtil.WHISPER_SAMPLE_RATE / 1000;
+        mAgreement.reset();
+        mStreamRing = ring;
+        long request = Tracer.newRequest();
+
+        mStreamThread = new Thread(() -> {
+            Tracer.setRequest(request);
+            streamFunction(ring, hopSamples, windowSamples, keepSamples);
+        }, "WhisperStream");
+        mStreamThread.start();
+    }
+
+    // Queue samples for streaming transcription, split into short blocks
+    public void writeStreamBuffer(float[] samples, int offset, int length) {
+        AudioBlockRing ring = mStreamRing;
+        if (ring == null) {
+            Log.d(TAG, "Streaming is not running, buffer dropped");
+            return;
+        }
+
+        for (int pos = 0; pos < length; pos += STREAM_BLOCK_SAMPLES)
+            ring.write(samples, offset + pos, Math.min(STREAM_BLOCK_SAMPLES, length - pos));
+    }
+
+    // Transcribe the audio queued so far, commit the remaining text and stop streaming.
+    // The full transcript is delivered through onResultReceived().
+    public void stopStreaming() {
+        Thread thread = mStreamThread;
+        AudioBlockRing ring = mStreamRing;
+        if (thread == null || ring == null)
+            return;
+
+        // A zero length block marks the end of the stream
+        ring.write(new float[0], 0, 0);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ring.close();
+        mStreamRing = null;
+        mStreamThread = null;
+    }
+
+    public long getStreamDroppedCount() {
+        AudioBlockRing ring = mStreamRing;
+        return (ring != null) ? ring.getDroppedCount() : 0;
+    }
+
+    private void streamFunction(AudioBlockRing ring, int hopSamples, int windowSamples, int keepSamples) {
+        // Engines pad to 30 s with zeros, so the window is transcribed in place with a zero tail
+        float[] window = new float[WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE];
+        float[] block = new float[ring.getBlockSamples()];
+        int windowLength = 0;
+        int pending = 0;  // samples added since the last transcription
+
+        try {
+            int length;
+            while ((length = ring.take(block)) > 0) {
+                if (windowLength + length > windowSamples) {
+                    // Audio that was not transcribed yet must be before it leaves the window
+                    if (pending > 0) {
+                        transcribeStreamWindow(window);
+                        pending = 0;
+                    }
+                    windowLength = trimStreamWindow(window, windowLength, keepSamples);
+                }
+                System.arraycopy(block, 0, window, windowLength, length);
+                windowLength += length;
+                pending += length;
+
+                // Catch up with queued audio first, so the window is always transcribed up to date
+                if (pending < hopSamples || ring.getDepth() > 0)
+                    continue;
+                pending = 0;
+
+                transcribeStreamWindow(window);
+                if (windowLength + hopSamples > windowSamples) {
+                    windowLength = trimStreamWindow(window, windowLength, keepSamples);
+                }
+            }
+
+            if (pending > 0)
+                transcribeStreamWindow(window);
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Streaming interrupted");
+        }
+
+        sendCommitted(mAgreement.flush());
+        sendPartial("");
+        sendResult(mAgreement.getTranscript());
+        Log.d(TAG, "Streaming thread finished");
+    }
+
+    private void transcribeStreamWindow(float[] window) throws InterruptedException {
+        String hypothesis;
+        IWhisperEngine engine = acquireEngine();
+        try {
+            hypothesis = engine.transcribeBuffer(window);
+        } finally {
+            releaseEngine(engine);
+        }
+
+        sendCommitted(mAgreement.insert(hypothesis));
+        sendPartial(mAgreement.getPartial());
+    }
+
+    // The oldest audio leaves the window, the text that is still partial stays partial, see LocalAgreement.trim().
+    // Returns the new window length.
+    private int trimStreamWindow(float[] window, int windowLength, int keepSamples) {
+        mAgreement.trim();
+
+        int keep = Math.min(keepSamples, windowLength);
+        System.arraycopy(window, windowLength - keep, window, 0, keep);
+        Arrays.fill(window, keep, windowLength, 0.0f);
+        return keep;
+    }
+
+    private void sendPartial(String partial) {
+        if (mUpdateListener != null)
+            mUpdateListener.onPartialReceived(partial);
+    }
+
+    private void sendCommitted(String committed) {
+        if (mUpdateListener != null && !committed.isEmpty())
+            mUpdateListener.onCommittedReceived(committed);
     }
-}
\ No newline at end of file
+}
@@ -1,16 +1,33 @@
 package com.whispertflite.engine;
 
+import android.content.Context;
+
 import com.whispertflite.asr.IWhisperListener;
 
 import java.io.IOException;
+import java.util.List;
 
 public interface IWhisperEngine {
     boolean isInitialized();
     void interrupt();
     void setUpdateListener(IWhisperListener listener);
     boolean initialize(String modelPath, String vocabPath, boolean multilingual) throws IOException;
+
+    // Model and vocab used in place from the APK, see AssetUtil
+    boolean initialize(Context context, String modelAsset, String vocabAsset, boolean multilingual) throws IOException;
+
+    // Whole file, longer than 30 s in overlapping chunks on this engine (see TranscriptStitcher)
     String transcribeFile(String wavePath);
+
+    // Single window transcription: only the first 30 s of audio are used, Whisper chunks longer buffers
     String transcribeBuffer(float[] samples);
 
+    // Pipelined batch transcription of whole files, chunked like transcribeFile().
+    // The engine is busy until the batch is exhausted or closed.
+    TranscriptionBatch transcribeFiles(List<String> wavePaths);
+
+    // Free the model and interpreter, the engine must be idle and is not usable afterwards
+    void release();
+
     //String getTranslation(String wavePath);
 }
@@ -0,0 +1,181 @@
+package com.whispertflite.engine;
+
+import android.util.Log;
+
+import com.whispertflite.asr.TranscriptStitcher;
+import com.whispertflite.utils.WaveUtil;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// Pipelined batch transcription of WAV files.
+// WAV decode and the mel front end run on their own threads, connected to inference by bounded queues,
+// so file N+1 is decoded and its mel computed while file N is being inferred.
+// Results are returned in input order by next(), which runs the inference stage on the caller's thread.
+// Files longer than 30 s go through the stages as overlapping chunks that next() stitches back together.
+// Mel buffers are preallocated and recycled, close() stops the stages early.
+public class TranscriptionBatch implements Iterator<String>, AutoCloseable {
+    private static final String TAG = "TranscriptionBatch";
+    private static final int QUEUE_DEPTH = 2;
+    private static final long POLL_MS = 50;
+
+    interface FrontEnd {
+        void computeMel(float[] samples, float[] melOut);
+    }
+
+    interface Inference {
+        String transcribeMel(float[] mel);
+    }
+
+    private final int mCount;
+    private final Inference mInference;
+    private final BlockingQueue<float[]> mDecoded = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+    private final BlockingQueue<float[]> mMels = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+    private final BlockingQueue<float[]> mFreeMels = new ArrayBlockingQueue<>(QUEUE_DEPTH + 2);
+    private final Queue<Integer> mChunkCounts = new ConcurrentLinkedQueue<>();  // per file, ahead of its chunks
+    private final Thread mDecodeThread;
+    private final Thread mFrontEndThread;
+
+    private volatile Throwable mError = null;
+    private int mReturned = 0;
+    private boolean mClosed = false;
+    private Runnable mOnClose = null;
+
+    TranscriptionBatch(List<String> wavePaths, int melSize, FrontEnd frontEnd, Inference inference) {
+        mCount = wavePaths.size();
+        mInference = inference;
+
+        // One mel buffer per queue slot, plus the ones held by the front end and inference stages
+        for (int i = 0; i < QUEUE_DEPTH + 2; i++)
+            mFreeMels.add(new float[melSize]);
+
+        mDecodeThread = new Thread(() -> {
+            try {
+                for (String path : wavePaths) {
+                    float[] samples = WaveUtil.getSamples(path);
+                    int chunks = TranscriptStitcher.chunkCount(samples.length);
+                    mChunkCounts.add(chunks);
+                    for (int i = 0; i < chunks; i++)
+                        mDecoded.put(TranscriptStitcher.chunk(samples, i));
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Decode stage stopped");
+            } catch (RuntimeException e) {
+                mError = e;
+            }
+        }, "BatchDecode");
+
+        // Runs until close(), the number of chunks is only known once the files are decoded
+        mFrontEndThread = new Thread(() -> {
+            try {
+                while (true) {
+                    float[] samples = mDecoded.take();
+                    float[] mel = mFreeMels.take();
+                    frontEnd.computeMel(samples, mel);
+                    mMels.put(mel);
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Front end stage stopped");
+            } catch (RuntimeException e) {
+                mError = e;
+            }
+        }, "BatchFrontEnd");
+
+        if (mCount > 0) {
+            mDecodeThread.start();
+            mFrontEndThread.start();
+        } else {
+            mClosed = true;
+        }
+    }
+
+    // Run once the batch is exhausted or closed, immediately if that already happened
+    public void setOnClose(Runnable onClose) {
+        if (mClosed) {
+            if (onClose != null)
+                onClose.run();
+        } else {
+            mOnClose = onClose;
+        }
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !mClosed && mReturned < mCount;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        try {
+            // The decode stage queues the chunk count of a file before the file's first chunk
+            float[] mel = takeMel();
+            int chunks = mChunkCounts.remove();
+            List<String> texts = new ArrayList<>(chunks);
+            texts.add(transcribeMel(mel));
+            for (int i = 1; i < chunks; i++)
+                texts.add(transcribeMel(takeMel()));
+            return TranscriptStitcher.stitch(texts);
+        } finally {
+            if (++mReturned == mCount)
+                close();
+        }
+    }
+
+    private float[] takeMel() {
+        float[] mel;
+        try {
+            while ((mel = mMels.poll(POLL_MS, TimeUnit.MILLISECONDS)) == null) {
+                if (mError != null) {
+                    close();
+                    throw new IllegalStateException("Batch transcription failed", mError);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IllegalStateException("Batch transcription interrupted", e);
+        }
+        return mel;
+    }
+
+    private String transcribeMel(float[] mel) {
+        try {
+            return mInference.transcribeMel(mel);
+        } finally {
+            mFreeMels.add(mel);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mClosed)
+            return;
+        mClosed = true;
+
+        mDecodeThread.interrupt();
+        mFrontEndThread.interrupt();
+        try {
+            mDecodeThread.join();
+            mFrontEndThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (mOnClose != null)
+            mOnClose.run();
+    }
+}
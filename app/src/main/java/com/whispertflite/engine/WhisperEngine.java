@@ -1,30 +1,43 @@
 package com.whispertflite.engine;
 
+import android.content.Context;
 import android.util.Log;
 
 import com.whispertflite.asr.IWhisperListener;
+import com.whispertflite.asr.TranscriptStitcher;
+import com.whispertflite.utils.AssetUtil;
+import com.whispertflite.utils.Tracer;
 import com.whispertflite.utils.WaveUtil;
 import com.whispertflite.utils.WhisperUtil;
 
-import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.Tensor;
-import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
 
 public class WhisperEngine implements IWhisperEngine {
     private final String TAG = "WhisperEngineJava";
     private final WhisperUtil mWhisperUtil = new WhisperUtil();
 
-    private boolean mIsInitialized = false;
+    private volatile boolean mIsInitialized = false;
     private Interpreter mInterpreter = null;
     private IWhisperListener mUpdateListener = null;
 
+    // Tensor I/O buffers, allocated once per model and reused for every request
+    private ByteBuffer mInputBuffer = null;
+    private FloatBuffer mInputFloats = null;
+    private ByteBuffer mOutputBuffer = null;
+    private IntBuffer mOutputInts = null;
+    private float[] mPaddedSamples = null;
+
     @Override
     public boolean isInitialized() {
         return mIsInitialized;
@@ -35,6 +48,17 @@ public class WhisperEngine implements IWhisperEngine {
 
     }
 
+    @Override
+    public void release() {
+        mIsInitialized = false;
+        if (mInterpreter != null) {
+            mInterpreter.close();
+            mInterpreter = null;
+        }
+        // Stops the persistent mel worker threads
+        mWhisperUtil.release();
+    }
+
     public void updateStatus(String message) {
         if (mUpdateListener != null)
             mUpdateListener.onUpdateReceived(message);
@@ -63,23 +87,41 @@ public class WhisperEngine implements IWhisperEngine {
         return mIsInitialized;
     }
 
+    @Override
+    public boolean initialize(Context context, String modelAsset, String vocabAsset, boolean multilingual) throws IOException {
+        createInterpreter(AssetUtil.map(context, modelAsset));
+        Log.d(TAG, "Model is mapped from assets..." + modelAsset);
+
+        mIsInitialized = mWhisperUtil.loadFiltersAndVocab(multilingual, context, vocabAsset);
+        Log.d(TAG, mIsInitialized ? "Filters and Vocab are loaded..." + vocabAsset : "Failed to load Filters and Vocab...");
+        return mIsInitialized;
+    }
+
     @Override
     public String transcribeFile(String wavePath) {
-        // Calculate Mel spectrogram
+        // Get samples in PCM_FLOAT format, longer files are transcribed in overlapping 30 s chunks
+        float[] samples = WaveUtil.getSamples(wavePath);
+        return TranscriptStitcher.transcribe(samples, this::transcribeBuffer);
+    }
+
+    @Override
+    public String transcribeBuffer(float[] samples) {
+        // Calculate Mel spectrogram straight into the model input
         Log.d(TAG, "Calculating Mel spectrogram...");
-        float[] melSpectrogram = getMelSpectrogram(wavePath);
+        computeMel(samples);
         Log.d(TAG, "Mel spectrogram is calculated...!");
 
         // Perform inference
-        String result = runInference(melSpectrogram);
+        String result = runInference();
         Log.d(TAG, "Inference is executed...!");
 
         return result;
     }
 
     @Override
-    public String transcribeBuffer(float[] samples) {
-        return null;
+    public TranscriptionBatch transcribeFiles(List<String> wavePaths) {
+        int melSize = WhisperUtil.WHISPER_N_MEL * WhisperUtil.WHISPER_MEL_LEN;
+        return new TranscriptionBatch(wavePaths, melSize, this::computeMel, this::transcribeMel);
     }
 
     // Load TFLite model
@@ -89,88 +131,99 @@ public class WhisperEngine implements IWhisperEngine {
         long startOffset = 0;
         long declaredLength = fileChannel.size();
         ByteBuffer tfliteModel = fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+        createInterpreter(tfliteModel);
+    }
 
+    private void createInterpreter(ByteBuffer tfliteModel) {
         // Set the number of threads for inference
         Interpreter.Options options = new Interpreter.Options();
         options.setNumThreads(Runtime.getRuntime().availableProcessors());
 
         mInterpreter = new Interpreter(tfliteModel, options);
+        allocateTensorBuffers();
     }
 
-    private float[] getMelSpectrogram(String wavePath) {
-        // Get samples in PCM_FLOAT format
-        float[] samples = WaveUtil.getSamples(wavePath);
-
-        int fixedInputSize = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
-        float[] inputSamples = new float[fixedInputSize];
-        int copyLength = Math.min(samples.length, fixedInputSize);
-        System.arraycopy(samples, 0, inputSamples, 0, copyLength);
-
-        int cores = Runtime.getRuntime().availableProcessors();
-        return mWhisperUtil.getMelSpectrogram(inputSamples, inputSamples.length, cores);
-    }
-
-    private String runInference(float[] inputData) {
-        // Create input tensor
+    // Allocate direct, native ordered input/output buffers matching the model tensors
+    private void allocateTensorBuffers() {
         Tensor inputTensor = mInterpreter.getInputTensor(0);
-        TensorBuffer inputBuffer = TensorBuffer.createFixedSize(inputTensor.shape(), inputTensor.dataType());
         Log.d(TAG, "Input Tensor Dump ===>");
         printTensorDump(inputTensor);
 
-        // Create output tensor
         Tensor outputTensor = mInterpreter.getOutputTensor(0);
-        TensorBuffer outputBuffer = TensorBuffer.createFixedSize(outputTensor.shape(), DataType.FLOAT32);
         Log.d(TAG, "Output Tensor Dump ===>");
         printTensorDump(outputTensor);
 
-        // Load input data
-        int inputSize = inputTensor.shape()[0] * inputTensor.shape()[1] * inputTensor.shape()[2] * Float.BYTES;
-        ByteBuffer inputBuf = ByteBuffer.allocateDirect(inputSize);
-        inputBuf.order(ByteOrder.nativeOrder());
-        for (float input : inputData) {
-            inputBuf.putFloat(input);
-        }
+        mInputBuffer = ByteBuffer.allocateDirect(inputTensor.numBytes()).order(ByteOrder.nativeOrder());
+        mInputFloats = mInputBuffer.asFloatBuffer();
+        mOutputBuffer = ByteBuffer.allocateDirect(outputTensor.numBytes()).order(ByteOrder.nativeOrder());
+        mOutputInts = mOutputBuffer.asIntBuffer();
+        mPaddedSamples = new float[WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE];
+    }
 
-        // To test mel data as a input directly
-//        try {
-//            byte[] bytes = Files.readAllBytes(Paths.get("/data/user/0/com.example.tfliteaudio/files/mel_spectrogram.bin"));
-//            inputBuf = ByteBuffer.wrap(bytes);
-//        } catch (IOException e) {
-//            throw new RuntimeException(e);
-//        }
+    // Mel of 16 kHz mono PCM_FLOAT samples into the bound input buffer
+    private void computeMel(float[] samples) {
+        long start = Tracer.begin();
+        padSamples(samples);
+        int cores = Runtime.getRuntime().availableProcessors();
+        mWhisperUtil.getMelSpectrogram(mPaddedSamples, mPaddedSamples.length, cores, mInputFloats);
+        Tracer.end(Tracer.SPAN_MEL, start);
+    }
+
+    // Batch front end stage, writes into a mel buffer owned by the pipeline
+    private void computeMel(float[] samples, float[] melOut) {
+        long start = Tracer.begin();
+        padSamples(samples);
+        int cores = Runtime.getRuntime().availableProcessors();
+        mWhisperUtil.getMelSpectrogram(mPaddedSamples, mPaddedSamples.length, cores, melOut);
+        Tracer.end(Tracer.SPAN_MEL, start);
+    }
+
+    // Pad or truncate into the reused fixed size input
+    private void padSamples(float[] samples) {
+        int copyLength = Math.min(samples.length, mPaddedSamples.length);
+        System.arraycopy(samples, 0, mPaddedSamples, 0, copyLength);
+        Arrays.fill(mPaddedSamples, copyLength, mPaddedSamples.length, 0.0f);
+    }
+
+    // Batch inference stage, the mel was computed ahead into a pipeline buffer
+    private String transcribeMel(float[] mel) {
+        mInputFloats.clear();
+        mInputFloats.put(mel, 0, Math.min(mel.length, mInputFloats.capacity()));
+        return runInference();
+    }
 
-        inputBuffer.loadBuffer(inputBuf);
+    // Inference on the mel in the bound input buffer
+    private String runInference() {
+        mInputBuffer.rewind();
+        mOutputBuffer.rewind();
 
         // Run inference
-        mInterpreter.run(inputBuffer.getBuffer(), outputBuffer.getBuffer());
+        long inferenceStart = Tracer.begin();
+        mInterpreter.run(mInputBuffer, mOutputBuffer);
+        Tracer.end(Tracer.SPAN_INFERENCE, inferenceStart);
 
         // Retrieve the results
-        int outputLen = outputBuffer.getIntArray().length;
-        Log.d(TAG, "output_len: " + outputLen);
-        StringBuilder result = new StringBuilder();
+        long decodeStart = Tracer.begin();
+        int outputLen = mOutputInts.capacity();
+        mWhisperUtil.resetDecoder();
         for (int i = 0; i < outputLen; i++) {
-            int token = outputBuffer.getBuffer().getInt();
+            int token = mOutputInts.get(i);
             if (token == mWhisperUtil.getTokenEOT())
                 break;
 
-            // Get word for token and Skip additional token
+            // Get bytes for token and Skip additional token
             if (token < mWhisperUtil.getTokenEOT()) {
-                String word = mWhisperUtil.getWordFromToken(token);
-                Log.d(TAG, "Adding token: " + token + ", word: " + word);
-                result.append(word);
-            } else {
-                if (token == mWhisperUtil.getTokenTranscribe())
-                    Log.d(TAG, "It is Transcription...");
-
-                if (token == mWhisperUtil.getTokenTranslate())
-                    Log.d(TAG, "It is Translation...");
-
-                String word = mWhisperUtil.getWordFromToken(token);
-                Log.d(TAG, "Skipping token: " + token + ", word: " + word);
+                mWhisperUtil.decodeToken(token);
+            } else if (token == mWhisperUtil.getTokenTranscribe()) {
+                Log.d(TAG, "It is Transcription...");
+            } else if (token == mWhisperUtil.getTokenTranslate()) {
+                Log.d(TAG, "It is Translation...");
             }
         }
 
-        return result.toString();
+        String text = mWhisperUtil.getDecodedText();
+        Tracer.end(Tracer.SPAN_DECODE, decodeStart);
+        return text;
     }
 
     private void printTensorDump(Tensor tensor) {
@@ -1,15 +1,26 @@
 package com.whispertflite.engine;
 
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.util.Log;
 
 import com.whispertflite.asr.IWhisperListener;
+import com.whispertflite.asr.TranscriptStitcher;
+import com.whispertflite.utils.AssetUtil;
+import com.whispertflite.utils.Tracer;
+import com.whispertflite.utils.WaveUtil;
+import com.whispertflite.utils.WhisperUtil;
+
+import java.io.IOException;
+import java.util.List;
 
 public class WhisperEngineNative implements IWhisperEngine {
     private final String TAG = "WhisperEngineNative";
-    private final long nativePtr; // Native pointer to the TFLiteEngine instance
+    private long nativePtr; // Native pointer to the TFLiteEngine instance, 0 once released
 
-    private boolean mIsInitialized = false;
+    private volatile boolean mIsInitialized = false;
     private IWhisperListener mUpdateListener = null;
+    private final long[] mStageNanos = new long[3];  // mel start, mel end, inference end
 
     public WhisperEngineNative() {
         nativePtr = createTFLiteEngine();
@@ -34,14 +45,42 @@ public class WhisperEngineNative implements IWhisperEngine {
         return true;
     }
 
+    // The native side maps the model's byte range of the APK itself, the vocab is compiled into the library
+    @Override
+    public boolean initialize(Context context, String modelAsset, String vocabAsset, boolean multilingual) throws IOException {
+        try (AssetFileDescriptor afd = AssetUtil.openFd(context, modelAsset)) {
+            int ret = loadModelFd(nativePtr, afd.getParcelFileDescriptor().getFd(),
+                    afd.getStartOffset(), afd.getDeclaredLength(), multilingual);
+            Log.d(TAG, "Model is mapped from assets..." + modelAsset + ", ret: " + ret);
+            mIsInitialized = (ret == 0);
+        }
+        return mIsInitialized;
+    }
+
     @Override
     public String transcribeBuffer(float[] samples) {
-        return transcribeBuffer(nativePtr, samples);
+        // One native call, the stages are timed natively on the clock of System.nanoTime()
+        String result = transcribeBuffer(nativePtr, samples, mStageNanos);
+        if (mStageNanos[1] != 0)
+            Tracer.span(Tracer.SPAN_MEL, mStageNanos[0], mStageNanos[1]);
+        if (mStageNanos[2] != 0)
+            Tracer.span(Tracer.SPAN_INFERENCE, mStageNanos[1], mStageNanos[2]);
+        return result;
     }
 
+    // Decoded in Java, so longer files are transcribed in overlapping 30 s chunks like buffers in Whisper
     @Override
     public String transcribeFile(String waveFile) {
-        return transcribeFile(nativePtr, waveFile);
+        float[] samples = WaveUtil.getSamples(waveFile);
+        return TranscriptStitcher.transcribe(samples, this::transcribeBuffer);
+    }
+
+    @Override
+    public TranscriptionBatch transcribeFiles(List<String> wavePaths) {
+        int melSize = WhisperUtil.WHISPER_N_MEL * WhisperUtil.WHISPER_MEL_LEN;
+        return new TranscriptionBatch(wavePaths, melSize,
+                (samples, melOut) -> computeMel(nativePtr, samples, melOut),
+                mel -> transcribeMel(nativePtr, mel));
     }
 
     @Override
@@ -49,6 +88,17 @@ public class WhisperEngineNative implements IWhisperEngine {
 
     }
 
+    // Frees the interpreter, the model mapping and the mel buffers, then the native engine itself
+    @Override
+    public void release() {
+        if (nativePtr == 0)
+            return;
+
+        mIsInitialized = false;
+        freeModel(nativePtr);
+        nativePtr = 0;
+    }
+
     public void updateStatus(String message) {
         if (mUpdateListener != null)
             mUpdateListener.onUpdateReceived(message);
@@ -58,10 +108,6 @@ public class WhisperEngineNative implements IWhisperEngine {
         return loadModel(nativePtr, modelPath, isMultilingual);
     }
 
-    private void freeModel() {
-        freeModel(nativePtr);
-    }
-
     static {
         System.loadLibrary("audioEngine");
     }
@@ -69,7 +115,9 @@ public class WhisperEngineNative implements IWhisperEngine {
     // Native methods
     private native long createTFLiteEngine();
     private native int loadModel(long nativePtr, String modelPath, boolean isMultilingual);
+    private native int loadModelFd(long nativePtr, int fd, long offset, long length, boolean isMultilingual);
     private native void freeModel(long nativePtr);
-    private native String transcribeBuffer(long nativePtr, float[] samples);
-    private native String transcribeFile(long nativePtr, String waveFile);
+    private native String transcribeBuffer(long nativePtr, float[] samples, long[] stageNanos);
+    private native boolean computeMel(long nativePtr, float[] samples, float[] melOut);
+    private native String transcribeMel(long nativePtr, float[] mel);
 }
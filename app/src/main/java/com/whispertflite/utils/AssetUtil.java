@@ -0,0 +1,64 @@
+package com.whispertflite.utils;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Models and vocab are used in place from the APK: they are stored uncompressed (noCompress in
+// app/build.gradle), so each one is a plain byte range of the APK file that can be mapped or handed to
+// native code as fd/offset/length. Nothing is copied to filesDir and the pages are shared with the page
+// cache of the APK itself.
+// Files that are not bundled (e.g. a model pushed to the device) are looked up in filesDir instead.
+public class AssetUtil {
+    // Byte range of the named asset, or of filesDir/name when the APK does not contain it.
+    // The caller closes the descriptor, mappings made from it stay valid after that.
+    public static AssetFileDescriptor openFd(Context context, String name) throws IOException {
+        try {
+            return context.getAssets().openFd(name);
+        } catch (FileNotFoundException e) {
+            // Missing, or compressed in the APK ("probably compressed"), which only a copy could use
+            File file = new File(context.getFilesDir(), name);
+            if (!file.exists())
+                throw e;
+            ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+            return new AssetFileDescriptor(pfd, 0, file.length());
+        }
+    }
+
+    // Read-only mapping of the named asset, see openFd()
+    public static MappedByteBuffer map(Context context, String name) throws IOException {
+        try (AssetFileDescriptor afd = openFd(context, name);
+             FileInputStream in = new FileInputStream(afd.getFileDescriptor())) {
+            FileChannel channel = in.getChannel();
+            long length = afd.getDeclaredLength();
+            if (length < 0)
+                length = channel.size() - afd.getStartOffset();
+            return channel.map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), length);
+        }
+    }
+
+    // Last change of the named asset: the install or update time of the APK for bundled ones, the file time
+    // otherwise. Files derived from it (like the mapped vocab image) are stale when they are older.
+    public static long lastModified(Context context, String name) {
+        if (isBundled(context, name))
+            return new File(context.getPackageCodePath()).lastModified();
+        return new File(context.getFilesDir(), name).lastModified();
+    }
+
+    // The APK holds the asset uncompressed, so it can be used in place
+    private static boolean isBundled(Context context, String name) {
+        try {
+            context.getAssets().openFd(name).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.whispertflite.utils;
+
+import java.util.Arrays;
+
+// Streaming polyphase resampler with channel downmix.
+// Converts interleaved PCM_FLOAT frames of any rate/channel layout to mono at the output rate.
+// All state (filter bank and history) is allocated once in the constructor, process() never allocates.
+public class AudioResampler {
+    private static final int TAPS_PER_PHASE = 32;
+
+    private final int mChannels;
+    private final int mUp;       // interpolation factor (L)
+    private final int mDown;     // decimation factor (M)
+    private final boolean mPassthrough;
+
+    private final float[] mCoeffs;   // polyphase filter bank, phase p at [p * TAPS_PER_PHASE]
+    private final float[] mHistory;  // mono history, mirrored so that one window is always contiguous
+    private int mHistoryPos = 0;
+    private int mPhase = 0;
+
+    public AudioResampler(int inputRate, int outputRate, int channels) {
+        if (inputRate <= 0 || outputRate <= 0 || channels <= 0)
+            throw new IllegalArgumentException("Invalid format, rate: " + inputRate + " -> " + outputRate + ", channels: " + channels);
+
+        int g = gcd(inputRate, outputRate);
+        mChannels = channels;
+        mUp = outputRate / g;
+        mDown = inputRate / g;
+        mPassthrough = (mUp == 1 && mDown == 1);
+
+        if (mPassthrough) {
+            mCoeffs = null;
+            mHistory = null;
+        } else {
+            mCoeffs = designFilterBank(mUp, mDown);
+            mHistory = new float[2 * TAPS_PER_PHASE];
+        }
+    }
+
+    // Number of mono output frames produced for inputFrames frames starting from a reset state
+    public long getOutputFrames(long inputFrames) {
+        return (inputFrames * mUp + mDown - 1) / mDown;
+    }
+
+    // Upper bound of output frames a single process() call can produce for the given input frames
+    public int getMaxOutputFrames(int inputFrames) {
+        return (int) (((long) inputFrames * mUp) / mDown) + 1;
+    }
+
+    public void reset() {
+        mHistoryPos = 0;
+        mPhase = 0;
+        if (mHistory != null)
+            Arrays.fill(mHistory, 0.0f);
+    }
+
+    // Consume 'frames' interleaved frames from input[inOffset] and write mono output at output[outOffset].
+    // Returns the number of output frames written, output must hold getMaxOutputFrames(frames).
+    public int process(float[] input, int inOffset, int frames, float[] output, int outOffset) {
+        int out = outOffset;
+        int in = inOffset;
+        float scale = 1.0f / mChannels;
+
+        for (int i = 0; i < frames; i++) {
+            // Downmix
+            float x = input[in++];
+            for (int c = 1; c < mChannels; c++)
+                x += input[in++];
+            if (mChannels > 1)
+                x *= scale;
+
+            if (mPassthrough) {
+                output[out++] = x;
+                continue;
+            }
+
+            // Push into the mirrored history, newest sample sits at mHistoryPos + TAPS_PER_PHASE
+            mHistory[mHistoryPos] = x;
+            mHistory[mHistoryPos + TAPS_PER_PHASE] = x;
+            int newest = mHistoryPos + TAPS_PER_PHASE;
+
+            // Emit every output whose position falls on this input sample
+            while (mPhase < mUp) {
+                int base = mPhase * TAPS_PER_PHASE;
+                float sum = 0.0f;
+                for (int k = 0; k < TAPS_PER_PHASE; k++)
+                    sum += mCoeffs[base + k] * mHistory[newest - k];
+                output[out++] = sum;
+                mPhase += mDown;
+            }
+            mPhase -= mUp;
+
+            mHistoryPos++;
+            if (mHistoryPos == TAPS_PER_PHASE)
+                mHistoryPos = 0;
+        }
+
+        return out - outOffset;
+    }
+
+    // Blackman windowed-sinc low-pass at the upsampled rate, split into mUp phases
+    private static float[] designFilterBank(int up, int down) {
+        int length = up * TAPS_PER_PHASE;
+        double cutoff = 0.5 / Math.max(up, down);  // cycles per upsampled sample
+        double center = (length - 1) / 2.0;
+
+        double[] h = new double[length];
+        double sum = 0.0;
+        for (int n = 0; n < length; n++) {
+            double t = n - center;
+            double sinc = (t == 0.0) ? 2.0 * cutoff : Math.sin(2.0 * Math.PI * cutoff * t) / (Math.PI * t);
+            double w = 0.42 - 0.5 * Math.cos(2.0 * Math.PI * n / (length - 1))
+                    + 0.08 * Math.cos(4.0 * Math.PI * n / (length - 1));
+            h[n] = sinc * w;
+            sum += h[n];
+        }
+
+        // Normalize to a DC gain of 'up' to compensate for zero stuffing
+        float[] coeffs = new float[length];
+        for (int p = 0; p < up; p++) {
+            for (int k = 0; k < TAPS_PER_PHASE; k++) {
+                coeffs[p * TAPS_PER_PHASE + k] = (float) (h[p + k * up] * up / sum);
+            }
+        }
+        return coeffs;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -1,7 +1,6 @@
 package com.whispertflite.utils;
 
 import android.content.Context;
-import android.content.res.AssetManager;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -9,77 +8,99 @@ import org.json.JSONObject;
 import org.tensorflow.lite.Interpreter;
 
 import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.InputStreamReader;
-import java.io.InputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.regex.Pattern;
 
+// Bag-of-words intent classifier. Lookup tables are built once: word -> input index, tag -> responses.
+// The model input is a reused row of which only the hit positions are set and cleared again, so an
+// utterance costs O(tokens) besides the inference, and classify() skips even that for repeated utterances.
+// classifyBatch() runs many utterances through one inference per MAX_BATCH_SIZE rows.
+// Not thread safe.
 public class ChatbotTFLiteHelper {
+    public static final String NO_MATCH = "no_match";
+    private static final Pattern NON_ALPHANUMERIC = Pattern.compile("[^a-zA-Z0-9\\s]");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final float MIN_CONFIDENCE = 0.5f;
+    private static final int INTENT_CACHE_SIZE = 256;
+    private static final int MAX_BATCH_SIZE = 64;
+
     private Interpreter interpreter;
     private List<String> words;
     private List<String> labels;
-    private JSONObject intentsJson;
+    private Map<String, Integer> wordIndex;
+    private Map<String, String[]> responsesByTag;
     private Context context;
     private Random random;
 
+    // Reused model input and output; hits holds the input positions set to 1 by the last setInput()
+    private float[][] input;
+    private float[][] output;
+    private final float[][] externalInput = new float[1][];
+    private int[] hits;
+    private int hitCount = 0;
+
+    // Batch input/output, reused while consecutive batches have the same size: full MAX_BATCH_SIZE
+    // chunks of a long batch all share one resize and one allocation
+    private float[][] batchInput = null;
+    private float[][] batchOutput = null;
+
+    // Normalised utterance -> intent tag, the least recently used entry is evicted
+    private final Map<String, String> intentCache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > INTENT_CACHE_SIZE;
+        }
+    };
+
     public ChatbotTFLiteHelper(Context ctx) throws Exception {
         context = ctx;
         random = new Random();
 
-        // Copy model and data assets from assets folder to internal files directory (if not exists)
-        copyAssetIfNotExists("chatbot_model.tflite");
-        copyAssetIfNotExists("words.txt");
-        copyAssetIfNotExists("labels.txt");
-        copyAssetIfNotExists("intents.json");
-
-        // Load TensorFlow Lite model interpreter
+        // Load TensorFlow Lite model interpreter, mapped in place from the APK
         interpreter = new Interpreter(loadModelFile("chatbot_model.tflite"));
 
         // Load words and labels from assets files
         words = readLinesFromFile("words.txt");
         labels = readLinesFromFile("labels.txt");
 
-        // Load intents json
-        intentsJson = new JSONObject(readAssetFileAsString("intents.json"));
-    }
+        wordIndex = new HashMap<>();
+        for (int i = 0; i < words.size(); i++)
+            wordIndex.putIfAbsent(words.get(i), i);
 
-    private void copyAssetIfNotExists(String assetName) throws Exception {
-        File file = new File(context.getFilesDir(), assetName);
-        if (!file.exists()) {
-            AssetManager assetManager = context.getAssets();
-            InputStream in = assetManager.open(assetName);
-            FileOutputStream out = new FileOutputStream(file);
-            byte[] buffer = new byte[1024];
-            int read;
-            while ((read = in.read(buffer)) != -1) {
-                out.write(buffer, 0, read);
-            }
-            in.close();
-            out.flush();
-            out.close();
+        input = new float[1][words.size()];
+        output = new float[1][labels.size()];
+        hits = new int[words.size()];
+
+        // Load intents json, the first intent with a tag provides its responses
+        JSONObject intentsJson = new JSONObject(readAssetFileAsString("intents.json"));
+        JSONArray intentsArray = intentsJson.getJSONArray("intents");
+        responsesByTag = new HashMap<>();
+        for (int i = 0; i < intentsArray.length(); i++) {
+            JSONObject intentObj = intentsArray.getJSONObject(i);
+            JSONArray responses = intentObj.getJSONArray("responses");
+            String[] texts = new String[responses.length()];
+            for (int r = 0; r < texts.length; r++)
+                texts[r] = responses.getString(r);
+            responsesByTag.putIfAbsent(intentObj.getString("tag"), texts);
         }
     }
 
     private MappedByteBuffer loadModelFile(String modelFileName) throws Exception {
-        File file = new File(context.getFilesDir(), modelFileName);
-        FileInputStream inputStream = new FileInputStream(file);
-        FileChannel fileChannel = inputStream.getChannel();
-        long startOffset = 0;
-        long declaredLength = file.length();
-        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+        return AssetUtil.map(context, modelFileName);
     }
 
     private List<String> readLinesFromFile(String filename) throws Exception {
         List<String> lines = new ArrayList<>();
-        File file = new File(context.getFilesDir(), filename);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(context.getAssets().open(filename)));
         String line;
         while ((line = reader.readLine()) != null) {
             lines.add(line.trim());
@@ -90,8 +111,7 @@ public class ChatbotTFLiteHelper {
 
     private String readAssetFileAsString(String filename) throws Exception {
         StringBuilder sb = new StringBuilder();
-        File file = new File(context.getFilesDir(), filename);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(context.getAssets().open(filename)));
         String line;
         while ((line = reader.readLine()) != null) {
             sb.append(line);
@@ -102,8 +122,8 @@ public class ChatbotTFLiteHelper {
 
     // Tokenizer: Lowercase, remove punctuation, split by spaces
     private List<String> tokenize(String text) {
-        text = text.toLowerCase().replaceAll("[^a-zA-Z0-9\\s]", "");
-        String[] tokens = text.split("\\s+");
+        text = NON_ALPHANUMERIC.matcher(text.toLowerCase()).replaceAll("");
+        String[] tokens = WHITESPACE.split(text);
         List<String> tokenList = new ArrayList<>();
         for (String token : tokens) {
             if (!token.isEmpty()) {
@@ -129,40 +149,133 @@ public class ChatbotTFLiteHelper {
         return word;
     }
 
-    // Preprocess user input text into bag of words float array expected by model
-    public float[] preprocessInput(String inputText) {
+    // Intent tag of the input text, repeated utterances are answered from the cache
+    public String classify(String inputText) {
         List<String> tokens = tokenize(inputText);
-        for (int i = 0; i < tokens.size(); i++) {
-            tokens.set(i, stem(tokens.get(i)));
+        String key = String.join(" ", tokens);
+        String tag = intentCache.get(key);
+        if (tag == null) {
+            setInput(tokens);
+            tag = runModel(input);
+            intentCache.put(key, tag);
+        }
+        return tag;
+    }
+
+    // Intent tags of the input texts, in order. Cached and repeated utterances are classified once, the
+    // rest are stacked into [n, words.size()] inputs and classified n at a time.
+    public List<String> classifyBatch(List<String> inputTexts) {
+        String[] tags = new String[inputTexts.size()];
+        List<String> pendingKeys = new ArrayList<>();
+        List<List<String>> pendingTokens = new ArrayList<>();
+        Map<String, String> batchTags = new HashMap<>();
+
+        String[] keys = new String[inputTexts.size()];
+        for (int i = 0; i < keys.length; i++) {
+            List<String> tokens = tokenize(inputTexts.get(i));
+            keys[i] = String.join(" ", tokens);
+            tags[i] = intentCache.get(keys[i]);
+            if (tags[i] == null && !batchTags.containsKey(keys[i])) {
+                batchTags.put(keys[i], null);
+                pendingKeys.add(keys[i]);
+                pendingTokens.add(tokens);
+            }
+        }
+
+        for (int start = 0; start < pendingKeys.size(); start += MAX_BATCH_SIZE) {
+            int n = Math.min(MAX_BATCH_SIZE, pendingKeys.size() - start);
+            runBatch(pendingTokens.subList(start, start + n));
+            for (int row = 0; row < n; row++) {
+                String tag = bestLabel(batchOutput[row]);
+                batchTags.put(pendingKeys.get(start + row), tag);
+                intentCache.put(pendingKeys.get(start + row), tag);
+            }
+        }
+
+        List<String> result = new ArrayList<>(tags.length);
+        for (int i = 0; i < tags.length; i++)
+            result.add((tags[i] != null) ? tags[i] : batchTags.get(keys[i]));
+        return result;
+    }
+
+    // One inference over the bags of words of rows, the results are in the first rows of batchOutput
+    private void runBatch(List<List<String>> rows) {
+        int n = rows.size();
+        if (batchInput == null || batchInput.length != n) {
+            batchInput = new float[n][words.size()];
+            batchOutput = new float[n][labels.size()];
         }
 
+        // classify() runs resize the input back to one row, so the batch shape is set every time.
+        // resizeInput() is a no-op while the shape is unchanged.
+        interpreter.resizeInput(0, new int[]{n, words.size()});
+
+        for (int row = 0; row < n; row++) {
+            float[] bag = batchInput[row];
+            Arrays.fill(bag, 0f);
+            for (String token : rows.get(row)) {
+                Integer index = wordIndex.get(stem(token));
+                if (index != null)
+                    bag[index] = 1f;
+            }
+        }
+        interpreter.run(batchInput, batchOutput);
+    }
+
+    // Preprocess user input text into bag of words float array expected by model
+    public float[] preprocessInput(String inputText) {
         float[] bag = new float[words.size()];
-        for (int i = 0; i < words.size(); i++) {
-            bag[i] = tokens.contains(words.get(i)) ? 1f : 0f;
+        for (String token : tokenize(inputText)) {
+            Integer index = wordIndex.get(stem(token));
+            if (index != null)
+                bag[index] = 1f;
         }
         return bag;
     }
 
     // Run inference on preprocessed input and predict intent tag
     public String predictIntent(float[] inputVector) {
-        float[][] input = new float[1][inputVector.length];
-        input[0] = inputVector;
+        externalInput[0] = inputVector;
+        String tag = runModel(externalInput);
+        externalInput[0] = null;
+        return tag;
+    }
 
-        float[][] output = new float[1][labels.size()];
-        interpreter.run(input, output);
+    // Bag of words of the tokens into the reused input row, clearing only the previous hits
+    private void setInput(List<String> tokens) {
+        float[] row = input[0];
+        for (int k = 0; k < hitCount; k++)
+            row[hits[k]] = 0f;
+        hitCount = 0;
 
+        for (String token : tokens) {
+            Integer index = wordIndex.get(stem(token));
+            if (index != null && row[index] == 0f) {
+                row[index] = 1f;
+                hits[hitCount++] = index;
+            }
+        }
+    }
+
+    private String runModel(float[][] modelInput) {
+        interpreter.run(modelInput, output);
+        return bestLabel(output[0]);
+    }
+
+    // Most probable label, NO_MATCH below the confidence threshold
+    private String bestLabel(float[] probabilities) {
         int maxIdx = 0;
-        float maxProb = output[0][0];
-        for (int i = 1; i < output[0].length; i++) {
-            if (output[0][i] > maxProb) {
-                maxProb = output[0][i];
+        float maxProb = probabilities[0];
+        for (int i = 1; i < probabilities.length; i++) {
+            if (probabilities[i] > maxProb) {
+                maxProb = probabilities[i];
                 maxIdx = i;
             }
         }
 
         // Confidence threshold fallback
-        if (maxProb < 0.5f) {
-            return "no_match";
+        if (maxProb < MIN_CONFIDENCE) {
+            return NO_MATCH;
         }
 
         return labels.get(maxIdx);
@@ -170,24 +283,14 @@ public class ChatbotTFLiteHelper {
 
     // Return a random appropriate response for the predicted intent
     public String getResponse(String intentTag) {
-        try {
-            if ("no_match".equals(intentTag)) {
-                // Default fallback response
-                return "Sorry, I didn't understand that. Could you please rephrase?";
-            }
-
-            JSONArray intentsArray = intentsJson.getJSONArray("intents");
-            for (int i = 0; i < intentsArray.length(); i++) {
-                JSONObject intentObj = intentsArray.getJSONObject(i);
-                if (intentObj.getString("tag").equals(intentTag)) {
-                    JSONArray responses = intentObj.getJSONArray("responses");
-                    int idx = random.nextInt(responses.length());
-                    return responses.getString(idx);
-                }
-            }
+        if (NO_MATCH.equals(intentTag)) {
+            // Default fallback response
+            return "Sorry, I didn't understand that. Could you please rephrase?";
+        }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        String[] responses = responsesByTag.get(intentTag);
+        if (responses != null && responses.length > 0) {
+            return responses[random.nextInt(responses.length)];
         }
         return "Sorry, I don't have an answer for that.";
     }
@@ -0,0 +1,267 @@
+package com.whispertflite.utils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Matches user input against the utterances of the conversation intents (conversation.json).
+// The JSON is compiled once into flat arrays of candidate strings. An input matches the candidate with the
+// smallest edit distance, if that distance is below half the candidate's length; on ties the first
+// candidate in file order wins.
+// Candidates are indexed in a BK-tree: children are keyed by their edit distance to the parent, so by the
+// triangle inequality a search within radius r only descends into children keyed d - r .. d + r of a node
+// at distance d. Searches start with a small radius that is doubled while nothing is found, and the radius
+// shrinks to the best distance found. Radii up to MAX_TREE_RADIUS use the tree; inputs with no candidate
+// that close fall back to a scan up to the largest distance the acceptance rule allows, where the tree would
+// visit nearly every node anyway. Each distance is computed in a band around the diagonal, capped at what
+// is needed, and abandoned once a whole row exceeds the cap.
+// Immutable after construction, match() may run on any thread.
+public class IntentMatcher {
+    public static final int NO_MATCH = -1;
+    private static final int FIRST_RADIUS = 2;
+    private static final int MAX_TREE_RADIUS = 8;
+
+    private final String[] mIntentNames;
+    private final String[][] mResponses;
+    private final String[] mCandidates;
+    private final int[] mCandidateIntents;
+    private final int mMaxCandidateLength;
+    private final Random mRandom = new Random();
+
+    // BK-tree over the distinct candidates, node 0 is the root. Nodes are candidate indices, duplicates
+    // keep their first occurrence, which wins ties anyway.
+    private final int[] mNodeCandidates;
+    private final int[] mFirstChild;
+    private final int[] mNextSibling;
+    private final int[] mEdgeDistances;   // distance to the parent
+    private final int[] mMaxChildEdges;   // largest edge distance among the children, -1 without children
+
+    // json: [{"intent": name, "utterances": [[token, ...], ...], "responses": [text, ...]}, ...]
+    public IntentMatcher(String json) throws JSONException {
+        JSONArray intents = new JSONArray(json);
+        List<String> candidates = new ArrayList<>();
+        List<Integer> candidateIntents = new ArrayList<>();
+
+        mIntentNames = new String[intents.length()];
+        mResponses = new String[intents.length()][];
+        for (int i = 0; i < intents.length(); i++) {
+            JSONObject intent = intents.getJSONObject(i);
+            mIntentNames[i] = intent.optString("intent", "");
+
+            JSONArray responses = intent.getJSONArray("responses");
+            mResponses[i] = new String[responses.length()];
+            for (int r = 0; r < responses.length(); r++)
+                mResponses[i][r] = responses.getString(r);
+
+            JSONArray utterances = intent.getJSONArray("utterances");
+            for (int u = 0; u < utterances.length(); u++) {
+                JSONArray tokens = utterances.getJSONArray(u);
+                StringBuilder sb = new StringBuilder();
+                for (int t = 0; t < tokens.length(); t++)
+                    sb.append(tokens.getString(t)).append(' ');
+                candidates.add(sb.toString().trim());
+                candidateIntents.add(i);
+            }
+        }
+
+        mCandidates = candidates.toArray(new String[0]);
+        mCandidateIntents = new int[mCandidates.length];
+        int maxLength = 0;
+        for (int c = 0; c < mCandidates.length; c++) {
+            mCandidateIntents[c] = candidateIntents.get(c);
+            maxLength = Math.max(maxLength, mCandidates[c].length());
+        }
+        mMaxCandidateLength = maxLength;
+
+        mNodeCandidates = new int[mCandidates.length];
+        mFirstChild = new int[mCandidates.length];
+        mNextSibling = new int[mCandidates.length];
+        mEdgeDistances = new int[mCandidates.length];
+        mMaxChildEdges = new int[mCandidates.length];
+        buildTree();
+    }
+
+    private void buildTree() {
+        int[] previous = new int[mMaxCandidateLength + 1];
+        int[] current = new int[mMaxCandidateLength + 1];
+        int nodes = 0;
+
+        for (int c = 0; c < mCandidates.length; c++) {
+            int node = nodes;
+            mNodeCandidates[node] = c;
+            mFirstChild[node] = -1;
+            mNextSibling[node] = -1;
+            mMaxChildEdges[node] = -1;
+            if (nodes == 0) {
+                nodes++;
+                continue;
+            }
+
+            int parent = 0;
+            while (true) {
+                String parentCandidate = mCandidates[mNodeCandidates[parent]];
+                int distance = boundedDistance(mCandidates[c], parentCandidate, mMaxCandidateLength, previous, current);
+                if (distance == 0)
+                    break;
+
+                int child = mFirstChild[parent];
+                while (child >= 0 && mEdgeDistances[child] != distance)
+                    child = mNextSibling[child];
+                if (child >= 0) {
+                    parent = child;
+                    continue;
+                }
+
+                mEdgeDistances[node] = distance;
+                mNextSibling[node] = mFirstChild[parent];
+                mFirstChild[parent] = node;
+                mMaxChildEdges[parent] = Math.max(mMaxChildEdges[parent], distance);
+                nodes++;
+                break;
+            }
+        }
+    }
+
+    public int getIntentCount() {
+        return mIntentNames.length;
+    }
+
+    public int getCandidateCount() {
+        return mCandidates.length;
+    }
+
+    public String getIntentName(int intent) {
+        return mIntentNames[intent];
+    }
+
+    // Index of the matching intent, NO_MATCH if no candidate is close enough
+    public int match(String input) {
+        if (mCandidates.length == 0)
+            return NO_MATCH;
+
+        // An accepted candidate c has d < |c| / 2 and d >= |c| - |input|, so d < |input| as well
+        int maxRadius = Math.min(mMaxCandidateLength / 2 - 1, input.length() - 1);
+        if (maxRadius < 0)
+            return NO_MATCH;
+
+        int[] previous = new int[mMaxCandidateLength + 1];
+        int[] current = new int[mMaxCandidateLength + 1];
+        int[] stack = new int[mCandidates.length];
+
+        // Small radii prune most of the tree and usually find the match; the first radius with a match
+        // gives the overall best, since everything closer was searched
+        for (int radius = FIRST_RADIUS; radius <= MAX_TREE_RADIUS; radius *= 2) {
+            int best = search(input, Math.min(radius, maxRadius), previous, current, stack);
+            if (best >= 0)
+                return mCandidateIntents[best];
+            if (radius >= maxRadius)
+                return NO_MATCH;
+        }
+
+        // Larger radii reach most of the tree, a scan with bounded distances is cheaper there
+        int best = scan(input, maxRadius, previous, current);
+        return (best >= 0) ? mCandidateIntents[best] : NO_MATCH;
+    }
+
+    // Best accepted candidate within radius in file order, -1 if none
+    private int scan(String input, int radius, int[] previous, int[] current) {
+        int bestDistance = radius + 1;
+        int bestCandidate = -1;
+        for (int c = 0; c < mCandidates.length; c++) {
+            String candidate = mCandidates[c];
+            int bound = Math.min(bestDistance, candidate.length() / 2) - 1;
+            int distance = boundedDistance(input, candidate, bound, previous, current);
+            if (distance <= bound) {
+                bestDistance = distance;
+                bestCandidate = c;
+            }
+        }
+        return bestCandidate;
+    }
+
+    // Best accepted candidate within radius, -1 if none
+    private int search(String input, int radius, int[] previous, int[] current, int[] stack) {
+        int bestDistance = Integer.MAX_VALUE;
+        int bestCandidate = -1;
+
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            int c = mNodeCandidates[node];
+            String candidate = mCandidates[c];
+
+            // Exact up to the distance the children pruning can use, beyond it no child is in range
+            int cap = radius + Math.max(0, mMaxChildEdges[node]);
+            int distance = boundedDistance(input, candidate, cap, previous, current);
+
+            // Ties with the best keep the radius, so an earlier candidate at the same distance is still found
+            if (distance <= radius && distance < candidate.length() / 2
+                    && (distance < bestDistance || (distance == bestDistance && c < bestCandidate))) {
+                bestDistance = distance;
+                bestCandidate = c;
+                radius = distance;
+            }
+
+            if (distance > cap)
+                continue;
+            for (int child = mFirstChild[node]; child >= 0; child = mNextSibling[child]) {
+                if (Math.abs(mEdgeDistances[child] - distance) <= radius)
+                    stack[top++] = child;
+            }
+        }
+        return bestCandidate;
+    }
+
+    // A random response of the matching intent, null if nothing matches
+    public String respond(String input) {
+        int intent = match(input);
+        if (intent == NO_MATCH)
+            return null;
+        String[] responses = mResponses[intent];
+        return responses[mRandom.nextInt(responses.length)];
+    }
+
+    // Levenshtein distance of a and b if it is at most bound, otherwise some value above bound.
+    // Only cells within bound of the diagonal can stay within bound, rows are computed in that band.
+    static int boundedDistance(String a, String b, int bound, int[] previous, int[] current) {
+        int n = a.length(), m = b.length();
+        if (bound < 0 || Math.abs(n - m) > bound)
+            return bound + 1;
+
+        int outside = bound + 1;
+        for (int j = 0; j <= m; j++)
+            previous[j] = (j <= bound) ? j : outside;
+
+        for (int i = 1; i <= n; i++) {
+            int from = Math.max(1, i - bound);
+            int to = Math.min(m, i + bound);
+            current[0] = (i <= bound) ? i : outside;
+            if (from > 1)
+                current[from - 1] = outside;
+
+            int rowMin = current[0];
+            char ca = a.charAt(i - 1);
+            for (int j = from; j <= to; j++) {
+                int cost = (ca == b.charAt(j - 1)) ? 0 : 1;
+                int value = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                current[j] = Math.min(value, outside);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (to < m)
+                current[to + 1] = outside;
+
+            if (rowMin > bound)
+                return outside;
+
+            int[] row = previous;
+            previous = current;
+            current = row;
+        }
+        return previous[m];
+    }
+}
@@ -0,0 +1,321 @@
+package com.whispertflite.utils;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Template matching keyword spotter for the wake word, needs no model besides the Whisper mel filters.
+// Clips are turned into MFCCs (a DCT of Whisper's log-mel frames, c0 dropped so the level does not matter)
+// and compared with subsequence DTW against a few enrolled templates of the keyword: the template may match
+// anywhere in the clip, the score is the average frame distance along the best warping path.
+// A 3 s clip costs a 300 frame mel spectrogram (~20 ms) and a few 100k multiply-adds per template; the
+// feature and DTW buffers are reused, so scoring does not allocate once they have grown to the clip size.
+// Templates are enrolled through offerTemplate(): a clip only becomes a template once another, later clip
+// matches it, so a single false wake word is never enrolled.
+// Not thread safe.
+public class KeywordSpotter {
+    private static final String TAG = "KeywordSpotter";
+    private static final int TEMPLATES_MAGIC = 0x4b575331;  // 'KWS1'
+
+    public static final int MAX_TEMPLATES = 5;
+    private static final int MAX_CANDIDATES = 3;
+    private static final float CONFIRM_CONFIDENCE = 0.75f;  // two candidates must match both ways at least this well
+    private static final int N_MFCC = 12;                   // c1..c12
+    private static final float SPEECH_RANGE = 0.5f;         // frames within 20 dB of the loudest are speech
+    private static final int MIN_TEMPLATE_FRAMES = 20;      // 200 ms
+    private static final int MAX_TEMPLATE_FRAMES = 150;     // 1.5 s
+
+    private final WhisperUtil mWhisperUtil;
+    private final float[][] mDct = new float[N_MFCC][WhisperUtil.WHISPER_N_MEL];
+    private final List<float[][]> mTemplates = new ArrayList<>();
+    private final List<float[][]> mCandidates = new ArrayList<>();  // offered, not confirmed yet
+
+    // Distance at which the confidence drops to 0, and the confidence needed for a detection. Unrelated
+    // speech scores about 0.1-0.2; the default is lenient and meant to be followed by a Whisper check.
+    private float mRejectDistance = 2.0f;
+    private float mMinConfidence = 0.25f;
+
+    private float[] mMel = new float[0];
+    private float[] mQuery = new float[0];  // MFCCs of the scored clip, frame-major
+    private float[] mPrevCost = new float[0];
+    private float[] mCost = new float[0];
+    private int[] mPrevLength = new int[0];
+    private int[] mLength = new int[0];
+    private float mLastDistance = Float.MAX_VALUE;
+
+    // whisperUtil must have its filters loaded
+    public KeywordSpotter(WhisperUtil whisperUtil) {
+        mWhisperUtil = whisperUtil;
+
+        int nMel = WhisperUtil.WHISPER_N_MEL;
+        for (int k = 0; k < N_MFCC; k++) {
+            for (int j = 0; j < nMel; j++)
+                mDct[k][j] = (float) (Math.sqrt(2.0 / nMel) * Math.cos(Math.PI * (k + 1) * (j + 0.5) / nMel));
+        }
+    }
+
+    public void setThresholds(float rejectDistance, float minConfidence) {
+        mRejectDistance = rejectDistance;
+        mMinConfidence = minConfidence;
+    }
+
+    public int getTemplateCount() {
+        return mTemplates.size();
+    }
+
+    public void clearTemplates() {
+        mTemplates.clear();
+        mCandidates.clear();
+    }
+
+    // Offer a clip believed to hold the keyword alone (e.g. confirmed by Whisper). It is kept as a candidate
+    // until a later offered clip matches it closely in both directions, then both are enrolled.
+    // Returns true when templates were enrolled.
+    public boolean offerTemplate(float[] samples, int length) {
+        if (mTemplates.size() >= MAX_TEMPLATES)
+            return false;
+        float[][] offered = extractTemplate(samples, length);
+        if (offered == null)
+            return false;
+
+        for (int c = 0; c < mCandidates.size(); c++) {
+            float[][] candidate = mCandidates.get(c);
+            float distance = Math.max(templateDistance(candidate, offered), templateDistance(offered, candidate));
+            if (1.0f - distance / mRejectDistance >= Math.max(mMinConfidence, CONFIRM_CONFIDENCE)) {
+                mCandidates.remove(c);
+                mTemplates.add(candidate);
+                if (mTemplates.size() < MAX_TEMPLATES)
+                    mTemplates.add(offered);
+                Log.d(TAG, "Templates confirmed, enrolled: " + mTemplates.size());
+                return true;
+            }
+        }
+
+        if (mCandidates.size() >= MAX_CANDIDATES)
+            mCandidates.remove(0);
+        mCandidates.add(offered);
+        Log.d(TAG, "Template candidate kept, frames: " + offered.length);
+        return false;
+    }
+
+    // Enroll a recording of the keyword without confirmation, trimmed to its speech. Returns false when the
+    // speech in it is too short or too long to be the keyword alone, or MAX_TEMPLATES are enrolled already.
+    public boolean addTemplate(float[] samples, int length) {
+        if (mTemplates.size() >= MAX_TEMPLATES)
+            return false;
+        float[][] template = extractTemplate(samples, length);
+        if (template == null)
+            return false;
+        mTemplates.add(template);
+        Log.d(TAG, "Template " + mTemplates.size() + " enrolled, frames: " + template.length);
+        return true;
+    }
+
+    // MFCC frames of the speech in the clip, null if it is too short or too long for the keyword alone
+    private float[][] extractTemplate(float[] samples, int length) {
+        int nLen = computeMel(samples, length);
+        int nMel = WhisperUtil.WHISPER_N_MEL;
+
+        // Speech region from the per-frame mean log-mel
+        float max = -Float.MAX_VALUE;
+        float[] energy = new float[nLen];
+        for (int i = 0; i < nLen; i++) {
+            float sum = 0.0f;
+            for (int j = 0; j < nMel; j++)
+                sum += mMel[j * nLen + i];
+            energy[i] = sum / nMel;
+            max = Math.max(max, energy[i]);
+        }
+        int first = 0, last = nLen - 1;
+        while (first < nLen && energy[first] < max - SPEECH_RANGE)
+            first++;
+        while (last > first && energy[last] < max - SPEECH_RANGE)
+            last--;
+
+        int frames = last - first + 1;
+        if (frames < MIN_TEMPLATE_FRAMES || frames > MAX_TEMPLATE_FRAMES) {
+            Log.d(TAG, "Template rejected, speech frames: " + frames);
+            return null;
+        }
+
+        float[][] template = new float[frames][N_MFCC];
+        for (int i = 0; i < frames; i++)
+            mfcc(nLen, first + i, template[i], 0);
+        return template;
+    }
+
+    // Confidence in [0, 1] that the keyword occurs in the clip, 0 without templates
+    public float score(float[] samples, int length) {
+        mLastDistance = Float.MAX_VALUE;
+        if (mTemplates.isEmpty())
+            return 0.0f;
+
+        int nLen = computeMel(samples, length);
+        if (mQuery.length < nLen * N_MFCC)
+            mQuery = new float[nLen * N_MFCC];
+        for (int i = 0; i < nLen; i++)
+            mfcc(nLen, i, mQuery, i * N_MFCC);
+
+        for (float[][] template : mTemplates)
+            mLastDistance = Math.min(mLastDistance, subsequenceDtw(template, mQuery, nLen));
+        return Math.max(0.0f, 1.0f - mLastDistance / mRejectDistance);
+    }
+
+    public boolean detect(float[] samples, int length) {
+        return score(samples, length) >= mMinConfidence;
+    }
+
+    public float getMinConfidence() {
+        return mMinConfidence;
+    }
+
+    // Best average frame distance of the last score() call
+    public float getLastDistance() {
+        return mLastDistance;
+    }
+
+    public boolean saveTemplates(String path) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            out.writeInt(TEMPLATES_MAGIC);
+            out.writeInt(mTemplates.size());
+            for (float[][] template : mTemplates) {
+                out.writeInt(template.length);
+                for (float[] frame : template) {
+                    for (float c : frame)
+                        out.writeFloat(c);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save templates: " + path, e);
+            return false;
+        }
+    }
+
+    public boolean loadTemplates(String path) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            if (in.readInt() != TEMPLATES_MAGIC)
+                return false;
+
+            List<float[][]> templates = new ArrayList<>();
+            int count = in.readInt();
+            if (count < 0) {
+                Log.d(TAG, "Invalid template count: " + count);
+                return false;
+            }
+            count = Math.min(count, MAX_TEMPLATES);
+            for (int t = 0; t < count; t++) {
+                // A corrupt length must not size the allocation, the templates in use are kept
+                int frames = in.readInt();
+                if (frames < MIN_TEMPLATE_FRAMES || frames > MAX_TEMPLATE_FRAMES) {
+                    Log.d(TAG, "Invalid template length: " + frames);
+                    return false;
+                }
+                float[][] template = new float[frames][N_MFCC];
+                for (float[] frame : template) {
+                    for (int k = 0; k < N_MFCC; k++)
+                        frame[k] = in.readFloat();
+                }
+                templates.add(template);
+            }
+            mTemplates.clear();
+            mTemplates.addAll(templates);
+            Log.d(TAG, "Templates loaded: " + mTemplates.size());
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "No templates loaded: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // DTW distance of the template within the other template, using the buffers of score()
+    private float templateDistance(float[][] template, float[][] other) {
+        int n = other.length;
+        if (mQuery.length < n * N_MFCC)
+            mQuery = new float[n * N_MFCC];
+        for (int i = 0; i < n; i++)
+            System.arraycopy(other[i], 0, mQuery, i * N_MFCC, N_MFCC);
+        return subsequenceDtw(template, mQuery, n);
+    }
+
+    // Normalized log-mel frames of the clip into mMel (mel-major), returns the number of frames
+    private int computeMel(float[] samples, int length) {
+        int nLen = length / WhisperUtil.WHISPER_HOP_LENGTH;
+        if (mMel.length < WhisperUtil.WHISPER_N_MEL * nLen)
+            mMel = new float[WhisperUtil.WHISPER_N_MEL * nLen];
+        mWhisperUtil.getMelSpectrogram(samples, length, 1, mMel);
+        return nLen;
+    }
+
+    private void mfcc(int nLen, int frame, float[] out, int offset) {
+        for (int k = 0; k < N_MFCC; k++) {
+            float sum = 0.0f;
+            for (int j = 0; j < WhisperUtil.WHISPER_N_MEL; j++)
+                sum += mDct[k][j] * mMel[j * nLen + frame];
+            out[offset + k] = sum;
+        }
+    }
+
+    // Cheapest alignment of the whole template with any part of the query, normalized by path length.
+    // Rows are template frames, the first row may start at any query frame and the last may end anywhere.
+    // query holds n frames of N_MFCC coefficients.
+    private float subsequenceDtw(float[][] template, float[] query, int n) {
+        if (mCost.length < n) {
+            mPrevCost = new float[n];
+            mCost = new float[n];
+            mPrevLength = new int[n];
+            mLength = new int[n];
+        }
+
+        for (int j = 0; j < n; j++) {
+            mPrevCost[j] = distance(template[0], query, j * N_MFCC);
+            mPrevLength[j] = 1;
+        }
+
+        for (int i = 1; i < template.length; i++) {
+            for (int j = 0; j < n; j++) {
+                float best = mPrevCost[j];
+                int length = mPrevLength[j];
+                if (j > 0 && mPrevCost[j - 1] / mPrevLength[j - 1] < best / length) {
+                    best = mPrevCost[j - 1];
+                    length = mPrevLength[j - 1];
+                }
+                if (j > 0 && mCost[j - 1] / mLength[j - 1] < best / length) {
+                    best = mCost[j - 1];
+                    length = mLength[j - 1];
+                }
+                mCost[j] = best + distance(template[i], query, j * N_MFCC);
+                mLength[j] = length + 1;
+            }
+
+            float[] cost = mPrevCost;
+            mPrevCost = mCost;
+            mCost = cost;
+            int[] lengths = mPrevLength;
+            mPrevLength = mLength;
+            mLength = lengths;
+        }
+
+        float best = Float.MAX_VALUE;
+        for (int j = 0; j < n; j++)
+            best = Math.min(best, mPrevCost[j] / mPrevLength[j]);
+        return best;
+    }
+
+    private static float distance(float[] a, float[] b, int offset) {
+        float sum = 0.0f;
+        for (int k = 0; k < N_MFCC; k++) {
+            float d = a[k] - b[offset + k];
+            sum += d * d;
+        }
+        return (float) Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,154 @@
+package com.whispertflite.utils;
+
+// Cheap speech-presence check for short 16 kHz mono clips, used to skip inference on silence and noise.
+// One pass over the samples in 32 ms frames: each frame's energy and zero-crossing rate are accumulated
+// while it is copied into the FFT buffer, then its spectral flatness is computed over the speech band.
+// A frame is speech-like when it is loud enough, its zero-crossing rate is in the voice range and its
+// spectrum is peaky (low flatness); a clip contains speech when enough consecutive frames are speech-like.
+// Loud low-frequency rumble can pass the gate, which only costs an inference, speech is not skipped.
+// Buffers are allocated once, containsSpeech() does not allocate. Not thread safe.
+public class SpeechDetector {
+    private static final int FRAME_SIZE = 512;
+    private static final int LOG2_FRAME_SIZE = 9;
+    private static final float BAND_LOW_HZ = 250.0f;
+    private static final float BAND_HIGH_HZ = 4000.0f;
+    private static final float POWER_EPSILON = 1e-10f;
+
+    private float mMinEnergyDb = -40.0f;       // frame RMS in dBFS
+    private float mMinZeroCrossingRate = 0.01f; // crossings per sample
+    private float mMaxZeroCrossingRate = 0.35f;
+    private float mMaxFlatness = 0.4f;
+    private int mMinSpeechFrames = 4;           // consecutive frames, ~130 ms
+
+    private final int mSampleRate;
+    private final int mBandLow;
+    private final int mBandHigh;
+    private final float[] mWindow = new float[FRAME_SIZE];
+    private final float[] mCos = new float[FRAME_SIZE / 2];
+    private final float[] mSin = new float[FRAME_SIZE / 2];
+    private final int[] mBitReverse = new int[FRAME_SIZE];
+    private final float[] mRe = new float[FRAME_SIZE];
+    private final float[] mIm = new float[FRAME_SIZE];
+
+    private int mLastSpeechFrames = 0;
+
+    public SpeechDetector() {
+        this(WhisperUtil.WHISPER_SAMPLE_RATE);
+    }
+
+    public SpeechDetector(int sampleRate) {
+        mSampleRate = sampleRate;
+        mBandLow = Math.max(1, Math.round(BAND_LOW_HZ * FRAME_SIZE / sampleRate));
+        mBandHigh = Math.min(FRAME_SIZE / 2, Math.round(BAND_HIGH_HZ * FRAME_SIZE / sampleRate));
+
+        for (int i = 0; i < FRAME_SIZE; i++) {
+            mWindow[i] = (float) (0.5 * (1.0 - Math.cos(2.0 * Math.PI * i / FRAME_SIZE)));
+            mBitReverse[i] = Integer.reverse(i) >>> (32 - LOG2_FRAME_SIZE);
+        }
+        for (int i = 0; i < FRAME_SIZE / 2; i++) {
+            mCos[i] = (float) Math.cos(2.0 * Math.PI * i / FRAME_SIZE);
+            mSin[i] = (float) -Math.sin(2.0 * Math.PI * i / FRAME_SIZE);
+        }
+    }
+
+    public void setThresholds(float minEnergyDb, float minZeroCrossingRate, float maxZeroCrossingRate,
+                              float maxFlatness, int minSpeechFrames) {
+        mMinEnergyDb = minEnergyDb;
+        mMinZeroCrossingRate = minZeroCrossingRate;
+        mMaxZeroCrossingRate = maxZeroCrossingRate;
+        mMaxFlatness = maxFlatness;
+        mMinSpeechFrames = minSpeechFrames;
+    }
+
+    public int getFrameMs() {
+        return FRAME_SIZE * 1000 / mSampleRate;
+    }
+
+    // Longest run of speech-like frames found by the last containsSpeech() call
+    public int getLastSpeechFrames() {
+        return mLastSpeechFrames;
+    }
+
+    // Returns as soon as a long enough run of speech-like frames is found
+    public boolean containsSpeech(float[] samples, int length) {
+        int run = 0;
+        mLastSpeechFrames = 0;
+
+        for (int start = 0; start + FRAME_SIZE <= length; start += FRAME_SIZE) {
+            if (isSpeechFrame(samples, start)) {
+                run++;
+                mLastSpeechFrames = Math.max(mLastSpeechFrames, run);
+                if (run >= mMinSpeechFrames)
+                    return true;
+            } else {
+                run = 0;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSpeechFrame(float[] samples, int start) {
+        // Energy and zero crossings, while filling the FFT input
+        double energy = 0.0;
+        int crossings = 0;
+        float prev = samples[start];
+        for (int i = 0; i < FRAME_SIZE; i++) {
+            float x = samples[start + i];
+            energy += x * x;
+            if ((x >= 0.0f) != (prev >= 0.0f))
+                crossings++;
+            prev = x;
+
+            int j = mBitReverse[i];
+            mRe[j] = x * mWindow[i];
+            mIm[j] = 0.0f;
+        }
+
+        double rms = Math.sqrt(energy / FRAME_SIZE);
+        if (20.0 * Math.log10(rms + POWER_EPSILON) < mMinEnergyDb)
+            return false;
+
+        float zcr = (float) crossings / FRAME_SIZE;
+        if (zcr < mMinZeroCrossingRate || zcr > mMaxZeroCrossingRate)
+            return false;
+
+        return spectralFlatness() <= mMaxFlatness;
+    }
+
+    // Geometric over arithmetic mean of the power spectrum in the speech band, 1 for white noise
+    private float spectralFlatness() {
+        fft();
+
+        double logSum = 0.0;
+        double sum = 0.0;
+        for (int k = mBandLow; k < mBandHigh; k++) {
+            double power = mRe[k] * mRe[k] + mIm[k] * mIm[k] + POWER_EPSILON;
+            logSum += Math.log(power);
+            sum += power;
+        }
+        int bins = mBandHigh - mBandLow;
+        return (float) (Math.exp(logSum / bins) / (sum / bins));
+    }
+
+    // In-place iterative radix-2 FFT of the bit-reversed input in mRe/mIm
+    private void fft() {
+        for (int size = 2; size <= FRAME_SIZE; size <<= 1) {
+            int half = size >> 1;
+            int step = FRAME_SIZE / size;
+            for (int start = 0; start < FRAME_SIZE; start += size) {
+                for (int k = 0; k < half; k++) {
+                    float wr = mCos[k * step];
+                    float wi = mSin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    float tr = mRe[b] * wr - mIm[b] * wi;
+                    float ti = mRe[b] * wi + mIm[b] * wr;
+                    mRe[b] = mRe[a] - tr;
+                    mIm[b] = mIm[a] - ti;
+                    mRe[a] += tr;
+                    mIm[a] += ti;
+                }
+            }
+        }
+    }
+}
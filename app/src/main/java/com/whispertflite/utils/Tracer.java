@@ -0,0 +1,217 @@
+package com.whispertflite.utils;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Lightweight span tracer, exported as Chrome/Perfetto trace-event JSON (chrome://tracing, ui.perfetto.dev).
+// Spans are recorded into a preallocated ring: recording claims a slot with one atomic increment and
+// stores primitives and string constants, so it never allocates or locks and can stay on in production.
+// When the ring is full the oldest spans are overwritten.
+//
+// A request id ties the spans of one utterance together across threads. The id is carried on each thread
+// through setRequest()/getRequest(), and handed over explicitly where work moves to another thread.
+//
+//   long start = Tracer.begin();
+//   ...
+//   Tracer.end(Tracer.SPAN_MEL, start);
+public final class Tracer {
+    private static final String TAG = "Tracer";
+    private static final int CAPACITY = 4096;  // power of two
+    private static final String CATEGORY = "whisper";
+
+    public static final long NO_REQUEST = 0;
+
+    // Span names
+    public static final String SPAN_CAPTURE = "capture";
+    public static final String SPAN_WAV_WRITE = "wav_write";
+    public static final String SPAN_QUEUE_WAIT = "queue_wait";
+    public static final String SPAN_JOB = "job";
+    public static final String SPAN_WAV_READ = "wav_read";
+    public static final String SPAN_ENGINE_WAIT = "engine_wait";
+    public static final String SPAN_MEL = "mel";
+    public static final String SPAN_INFERENCE = "inference";
+    public static final String SPAN_DECODE = "decode";
+    public static final String SPAN_SEND_RESULT = "send_result";
+    public static final String SPAN_SPEECH_GATE = "speech_gate";
+    public static final String SPAN_KEYWORD_SPOT = "keyword_spot";
+    public static final String SPAN_GET_RESPONSE = "get_response";
+    public static final String SPAN_TTS = "tts";
+
+    private static final long sBaseNanos = System.nanoTime();
+    private static volatile boolean sEnabled = true;
+    private static final AtomicLong sNextRequest = new AtomicLong(NO_REQUEST + 1);
+    private static final ThreadLocal<long[]> sRequest = ThreadLocal.withInitial(() -> new long[]{NO_REQUEST});
+
+    // Ring of spans, slot i is valid when sPublished[i] holds the index the slot was written for.
+    // The fields are atomic arrays too: writes are release stores after the -1 that invalidates the slot,
+    // reads are acquire loads, so a reader that sees the index again before and after reading the fields
+    // also saw the fields written for it. (VarHandle fences would need API 33.)
+    private static final AtomicLong sNextSlot = new AtomicLong(0);
+    private static final AtomicLongArray sPublished = new AtomicLongArray(CAPACITY);
+    private static final AtomicReferenceArray<String> sNames = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicReferenceArray<String> sThreadNames = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLongArray sThreadIds = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray sRequests = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray sStarts = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray sDurations = new AtomicLongArray(CAPACITY);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++)
+            sPublished.set(i, -1);
+    }
+
+    private Tracer() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static long newRequest() {
+        return sNextRequest.getAndIncrement();
+    }
+
+    // Allocate an id for a new request and make it current on this thread
+    public static long beginRequest() {
+        long request = newRequest();
+        setRequest(request);
+        return request;
+    }
+
+    public static void setRequest(long request) {
+        sRequest.get()[0] = request;
+    }
+
+    public static long getRequest() {
+        return sRequest.get()[0];
+    }
+
+    // Start timestamp of a span
+    public static long begin() {
+        return System.nanoTime();
+    }
+
+    // Record a span of the current request on this thread
+    public static void end(String name, long startNanos) {
+        if (sEnabled)
+            record(name, getRequest(), startNanos, System.nanoTime());
+    }
+
+    // Record a span of the given request, for spans that end on another thread than they started
+    public static void end(String name, long request, long startNanos) {
+        if (sEnabled)
+            record(name, request, startNanos, System.nanoTime());
+    }
+
+    // Record a span of the current request measured elsewhere, e.g. natively, on the System.nanoTime() clock
+    public static void span(String name, long startNanos, long endNanos) {
+        if (sEnabled)
+            record(name, getRequest(), startNanos, endNanos);
+    }
+
+    private static void record(String name, long request, long startNanos, long endNanos) {
+        long index = sNextSlot.getAndIncrement();
+        int slot = (int) (index & (CAPACITY - 1));
+        Thread thread = Thread.currentThread();
+
+        sPublished.set(slot, -1);
+        sNames.lazySet(slot, name);
+        sThreadNames.lazySet(slot, thread.getName());
+        sThreadIds.lazySet(slot, thread.getId());
+        sRequests.lazySet(slot, request);
+        sStarts.lazySet(slot, startNanos);
+        sDurations.lazySet(slot, endNanos - startNanos);
+        sPublished.lazySet(slot, index);
+    }
+
+    public static void clear() {
+        for (int i = 0; i < CAPACITY; i++)
+            sPublished.set(i, -1);
+    }
+
+    // Write the recorded spans as trace-event JSON. Spans being recorded meanwhile may be left out.
+    public static boolean exportChromeTrace(String path) {
+        try (Writer writer = new BufferedWriter(new FileWriter(path))) {
+            writeChromeTrace(writer);
+            Log.d(TAG, "Trace written: " + path);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write trace: " + path, e);
+            return false;
+        }
+    }
+
+    public static void writeChromeTrace(Writer writer) throws IOException {
+        long end = sNextSlot.get();
+        long begin = Math.max(0, end - CAPACITY);
+        Set<Long> threads = new HashSet<>();
+        boolean first = true;
+
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        for (long index = begin; index < end; index++) {
+            int slot = (int) (index & (CAPACITY - 1));
+            if (sPublished.get(slot) != index)
+                continue;
+
+            String name = sNames.get(slot);
+            String threadName = sThreadNames.get(slot);
+            long tid = sThreadIds.get(slot);
+            long request = sRequests.get(slot);
+            long start = sStarts.get(slot);
+            long duration = sDurations.get(slot);
+
+            // Overwritten while being read
+            if (sPublished.get(slot) != index)
+                continue;
+
+            if (threads.add(tid)) {
+                writer.write(first ? "\n" : ",\n");
+                writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + tid
+                        + ",\"args\":{\"name\":\"" + escape(threadName) + "\"}}");
+                first = false;
+            }
+
+            writer.write(first ? "\n" : ",\n");
+            writer.write("{\"name\":\"" + escape(name) + "\",\"cat\":\"" + CATEGORY + "\",\"ph\":\"X\",\"pid\":1"
+                    + ",\"tid\":" + tid
+                    + ",\"ts\":" + formatMicros(start - sBaseNanos)
+                    + ",\"dur\":" + formatMicros(duration)
+                    + ",\"args\":{\"request\":" + request + "}}");
+            first = false;
+        }
+        writer.write("\n]}\n");
+    }
+
+    // Non-negative nanoseconds as microseconds
+    private static String formatMicros(long nanos) {
+        return (nanos / 1000) + "." + String.format(Locale.ROOT, "%03d", nanos % 1000);
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,145 @@
+package com.whispertflite.utils;
+
+// Frame-level voice activity detector for 16-bit PCM capture, used for utterance endpointing.
+// Each 20 ms frame's energy is compared against a running noise-floor estimate: the floor drops quickly
+// to quieter frames and rises slowly otherwise, so it follows the room without rising on speech.
+// Hysteresis: speech starts after ONSET_MS of frames above floor + start margin, and ends when the frames
+// stay below floor + the lower continue margin for the hangover time.
+// Positions count samples since reset(), which the Recorder keeps equal to its capture position.
+// process() does not allocate. Not thread safe.
+public class VoiceActivityDetector {
+    private static final int FRAME_MS = 20;
+    private static final int ONSET_MS = 60;
+    private static final double FULL_SCALE_SQUARED = 32768.0 * 32768.0;
+    private static final double POWER_EPSILON = 1e-10;
+
+    // Noise floor smoothing per frame: falling, rising in silence, rising in speech (~0.4 s, ~2 s, ~20 s)
+    private static final float FLOOR_FALL = 0.05f;
+    private static final float FLOOR_RISE = 0.01f;
+    private static final float FLOOR_RISE_IN_SPEECH = 0.001f;
+    private static final float MIN_FLOOR_DB = -70.0f;
+
+    public static final long NO_POSITION = -1;
+
+    private float mStartMarginDb = 10.0f;   // above the noise floor to start speech
+    private float mContinueMarginDb = 5.0f; // above the noise floor to stay in speech
+    private float mMinSpeechDb = -50.0f;    // absolute level, frames below are never speech
+    private int mHangoverFrames;
+
+    private final int mFrameSamples;
+    private final int mOnsetFrames;
+
+    private boolean mSpeech = false;
+    private float mNoiseFloorDb = Float.NaN;
+    private int mOnsetCount = 0;
+    private int mHangoverCount = 0;
+    private long mSegmentStart = NO_POSITION;
+    private long mSegmentEnd = NO_POSITION;
+
+    // Frame being accumulated, frames may span process() calls
+    private long mPosition = 0;
+    private long mFrameSumSquares = 0;
+    private int mFrameFill = 0;
+
+    public VoiceActivityDetector() {
+        this(WhisperUtil.WHISPER_SAMPLE_RATE);
+    }
+
+    public VoiceActivityDetector(int sampleRate) {
+        mFrameSamples = sampleRate * FRAME_MS / 1000;
+        mOnsetFrames = ONSET_MS / FRAME_MS;
+        setHangoverMs(800);
+    }
+
+    // Non-speech time after which a speech segment ends
+    public void setHangoverMs(int hangoverMs) {
+        mHangoverFrames = Math.max(1, hangoverMs / FRAME_MS);
+    }
+
+    public int getHangoverMs() {
+        return mHangoverFrames * FRAME_MS;
+    }
+
+    public void setThresholds(float startMarginDb, float continueMarginDb, float minSpeechDb) {
+        mStartMarginDb = startMarginDb;
+        mContinueMarginDb = Math.min(continueMarginDb, startMarginDb);
+        mMinSpeechDb = minSpeechDb;
+    }
+
+    public void reset() {
+        mSpeech = false;
+        mNoiseFloorDb = Float.NaN;
+        mOnsetCount = 0;
+        mHangoverCount = 0;
+        mSegmentStart = NO_POSITION;
+        mSegmentEnd = NO_POSITION;
+        mPosition = 0;
+        mFrameSumSquares = 0;
+        mFrameFill = 0;
+    }
+
+    public void process(short[] samples, int length) {
+        for (int i = 0; i < length; i++) {
+            mFrameSumSquares += samples[i] * samples[i];
+            if (++mFrameFill == mFrameSamples) {
+                mPosition += mFrameSamples;
+                processFrame(mFrameSumSquares);
+                mFrameSumSquares = 0;
+                mFrameFill = 0;
+            }
+        }
+    }
+
+    // In a speech segment, including its hangover
+    public boolean isSpeech() {
+        return mSpeech;
+    }
+
+    // Start of the current or last speech segment
+    public long getSegmentStart() {
+        return mSegmentStart;
+    }
+
+    // End of the last speech frame of the last segment that ended, NO_POSITION while none has ended.
+    // The hangover has already passed when it is reported.
+    public long getSegmentEnd() {
+        return mSegmentEnd;
+    }
+
+    public float getNoiseFloorDb() {
+        return mNoiseFloorDb;
+    }
+
+    private void processFrame(long sumSquares) {
+        float db = (float) (10.0 * Math.log10(sumSquares / (FULL_SCALE_SQUARED * mFrameSamples) + POWER_EPSILON));
+        if (Float.isNaN(mNoiseFloorDb))
+            mNoiseFloorDb = Math.max(db, MIN_FLOOR_DB);
+
+        if (mSpeech) {
+            if (db >= mNoiseFloorDb + mContinueMarginDb && db >= mMinSpeechDb) {
+                mHangoverCount = 0;
+            } else if (++mHangoverCount >= mHangoverFrames) {
+                mSpeech = false;
+                mSegmentEnd = mPosition - (long) mHangoverCount * mFrameSamples;
+                mHangoverCount = 0;
+            }
+        } else {
+            if (db >= mNoiseFloorDb + mStartMarginDb && db >= mMinSpeechDb) {
+                if (++mOnsetCount >= mOnsetFrames) {
+                    mSpeech = true;
+                    mSegmentStart = mPosition - (long) mOnsetCount * mFrameSamples;
+                    mSegmentEnd = NO_POSITION;
+                    mOnsetCount = 0;
+                }
+            } else {
+                mOnsetCount = 0;
+            }
+        }
+
+        // Onset frames are not counted as noise
+        float rate = (db < mNoiseFloorDb) ? FLOOR_FALL
+                : mSpeech ? FLOOR_RISE_IN_SPEECH
+                : (mOnsetCount > 0) ? 0.0f : FLOOR_RISE;
+        mNoiseFloorDb = Math.max(MIN_FLOOR_DB, mNoiseFloorDb + (db - mNoiseFloorDb) * rate);
+    }
+}
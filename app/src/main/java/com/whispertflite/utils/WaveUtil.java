@@ -3,96 +3,126 @@ package com.whispertflite.utils;
 import android.util.Log;
 
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 public class WaveUtil {
     public static final String TAG = "WaveUtil";
     public static final String RECORDING_FILE = "MicInput.wav";
 
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int FMT_SIZE = 16;  // PCM fields of the fmt chunk, extensions are skipped
+    private static final int READ_BLOCK_FRAMES = 4096;
+
     public static void createWaveFile(String filePath, byte[] samples, int sampleRate, int numChannels, int bytesPerSample) {
-        try {
-            int dataSize = samples.length; // actual data size in bytes
-            int audioFormat = (bytesPerSample == 2) ? 1 : (bytesPerSample == 4) ? 3 : 0; // PCM_16 = 1, PCM_FLOAT = 3
-
-            FileOutputStream fileOutputStream = new FileOutputStream(filePath);
-            fileOutputStream.write("RIFF".getBytes(StandardCharsets.UTF_8)); // Write the "RIFF" chunk descriptor
-            fileOutputStream.write(intToByteArray(36 + dataSize), 0, 4); // Total file size - 8 bytes
-            fileOutputStream.write("WAVE".getBytes(StandardCharsets.UTF_8)); // Write the "WAVE" format
-            fileOutputStream.write("fmt ".getBytes(StandardCharsets.UTF_8)); // Write the "fmt " sub-chunk
-            fileOutputStream.write(intToByteArray(16), 0, 4); // Sub-chunk size (16 for PCM)
-            fileOutputStream.write(shortToByteArray((short) audioFormat), 0, 2); // Audio format (1 for PCM)
-            fileOutputStream.write(shortToByteArray((short) numChannels), 0, 2); // Number of channels
-            fileOutputStream.write(intToByteArray(sampleRate), 0, 4); // Sample rate
-            fileOutputStream.write(intToByteArray(sampleRate * numChannels * bytesPerSample), 0, 4); // Byte rate
-            fileOutputStream.write(shortToByteArray((short) (numChannels * bytesPerSample)), 0, 2); // Block align
-            fileOutputStream.write(shortToByteArray((short) (bytesPerSample * 8)), 0, 2); // Bits per sample
-            fileOutputStream.write("data".getBytes(StandardCharsets.UTF_8)); // Write the "data" sub-chunk
-            fileOutputStream.write(intToByteArray(dataSize), 0, 4); // Data size
-
-            // Write audio samples
-            fileOutputStream.write(samples);
-
-            // Close the file output stream
-            fileOutputStream.close();
+        createWaveFile(filePath, ByteBuffer.wrap(samples), sampleRate, numChannels, bytesPerSample);
+    }
+
+    // Write the remaining bytes of samples (position to limit) as a WAV file, the buffer position is unchanged
+    public static void createWaveFile(String filePath, ByteBuffer samples, int sampleRate, int numChannels, int bytesPerSample) {
+        try (WaveWriter writer = new WaveWriter(filePath, sampleRate, numChannels, bytesPerSample)) {
+            writer.write(samples.duplicate());
         } catch (IOException e) {
             e.printStackTrace();
             Log.e(TAG, "Error...", e);
         }
     }
 
+    // Read a WAV file and return its samples as 16 kHz mono PCM_FLOAT.
+    // The data chunk is streamed in blocks through AudioResampler, so any rate/channel layout is converted
+    // in a single pass and memory besides the result stays bounded.
     public static float[] getSamples(String filePath) {
-        try {
-            FileInputStream fileInputStream = new FileInputStream(filePath);
-
-            // Read the WAV file header
-            byte[] header = new byte[44];
-            fileInputStream.read(header);
+        try (FileInputStream fileInputStream = new FileInputStream(filePath)) {
+            FileChannel channel = fileInputStream.getChannel();
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
 
             // Check if it's a valid WAV file (contains "RIFF" and "WAVE" markers)
-            String headerStr = new String(header, 0, 4);
-            if (!headerStr.equals("RIFF")) {
-                System.err.println("Not a valid WAV file");
+            ByteBuffer riff = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            if (!readFully(channel, riff) || !hasTag(riff, 0, "RIFF") || !hasTag(riff, 8, "WAVE")) {
+                Log.e(TAG, "Not a valid WAV file: " + filePath);
                 return new float[0];
             }
 
-            // Get the audio format details from the header
-            int sampleRate = byteArrayToNumber(header, 24, 4);
-            int bitsPerSample = byteArrayToNumber(header, 34, 2);
-            if (bitsPerSample != 16 && bitsPerSample != 32) {
-                System.err.println("Unsupported bits per sample: " + bitsPerSample);
-                return new float[0];
+            // Walk the chunks until "data", picking up the audio format details from "fmt "
+            int audioFormat = 0, numChannels = 0, sampleRate = 0, bitsPerSample = 0;
+            long dataLength = -1;
+            ByteBuffer fmt = ByteBuffer.allocate(FMT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (readFully(channel, chunk)) {
+                int chunkSize = chunk.getInt(4);
+                long remaining = channel.size() - channel.position();
+                if (hasTag(chunk, 0, "data")) {
+                    // Recorders that crash before patching the header leave 0 or -1 here
+                    dataLength = (chunkSize <= 0) ? remaining : Math.min(chunkSize & 0xFFFFFFFFL, remaining);
+                    break;
+                }
+
+                // Sizes are validated before anything is allocated or skipped
+                if (chunkSize < 0 || chunkSize > remaining) {
+                    Log.e(TAG, "Invalid chunk size " + chunkSize + ": " + filePath);
+                    return new float[0];
+                }
+                if (hasTag(chunk, 0, "fmt ")) {
+                    if (chunkSize < FMT_SIZE || !readFully(channel, fmt)) {
+                        Log.e(TAG, "Invalid fmt chunk: " + filePath);
+                        return new float[0];
+                    }
+                    audioFormat = fmt.getShort(0) & 0xFFFF;
+                    numChannels = fmt.getShort(2) & 0xFFFF;
+                    sampleRate = fmt.getInt(4);
+                    bitsPerSample = fmt.getShort(14) & 0xFFFF;
+                    channel.position(channel.position() + chunkSize - FMT_SIZE + (chunkSize & 1));
+                } else {
+                    channel.position(channel.position() + chunkSize + (chunkSize & 1));
+                }
+                chunk.clear();
             }
 
-            // Get the size of the data section (all PCM data)
-            int dataLength = fileInputStream.available(); // byteArrayToInt(header, 40, 4);
+            if (dataLength < 0 || numChannels <= 0 || sampleRate <= 0) {
+                Log.e(TAG, "Missing fmt/data chunk: " + filePath);
+                return new float[0];
+            }
+            if (!(audioFormat == 1 && bitsPerSample == 16) && !(audioFormat == 3 && bitsPerSample == 32)) {
+                Log.e(TAG, "Unsupported format: " + audioFormat + ", bits per sample: " + bitsPerSample);
+                return new float[0];
+            }
 
-            // Calculate the number of samples
             int bytesPerSample = bitsPerSample / 8;
-            int numSamples = dataLength / bytesPerSample;
-
-            // Read the audio data
-            byte[] audioData = new byte[dataLength];
-            fileInputStream.read(audioData);
-            ByteBuffer byteBuffer = ByteBuffer.wrap(audioData);
-            byteBuffer.order(ByteOrder.nativeOrder());
-
-            // Convert audio data to PCM_FLOAT format
-            float[] samples = new float[numSamples];
-            if (bitsPerSample == 16) {
-                for (int i = 0; i < numSamples; i++) {
-                    samples[i] = (float) (byteBuffer.getShort() / 32768.0);
-                }
-            } else if (bitsPerSample == 32) {
-                for (int i = 0; i < numSamples; i++) {
-                    samples[i] = byteBuffer.getFloat();
+            int blockAlign = bytesPerSample * numChannels;
+            long numFrames = dataLength / blockAlign;
+            Log.d(TAG, "Sample rate: " + sampleRate + ", channels: " + numChannels + ", frames: " + numFrames);
+
+            AudioResampler resampler = new AudioResampler(sampleRate, WhisperUtil.WHISPER_SAMPLE_RATE, numChannels);
+            float[] samples = new float[(int) resampler.getOutputFrames(numFrames)];
+
+            // Convert audio data to PCM_FLOAT format block by block
+            ByteBuffer block = ByteBuffer.allocate(READ_BLOCK_FRAMES * blockAlign).order(ByteOrder.LITTLE_ENDIAN);
+            float[] frames = new float[READ_BLOCK_FRAMES * numChannels];
+            int written = 0;
+            long framesLeft = numFrames;
+            while (framesLeft > 0) {
+                int blockFrames = (int) Math.min(framesLeft, READ_BLOCK_FRAMES);
+                block.clear();
+                block.limit(blockFrames * blockAlign);
+                if (!readFully(channel, block))
+                    break;
+
+                int count = blockFrames * numChannels;
+                if (bitsPerSample == 16) {
+                    for (int i = 0; i < count; i++)
+                        frames[i] = block.getShort(i * 2) / 32768.0f;
+                } else {
+                    for (int i = 0; i < count; i++)
+                        frames[i] = block.getFloat(i * 4);
                 }
+
+                written += resampler.process(frames, 0, blockFrames, samples, written);
+                framesLeft -= blockFrames;
             }
 
-            return samples;
+            return (written == samples.length) ? samples : Arrays.copyOf(samples, written);
         } catch (IOException e) {
             e.printStackTrace();
             Log.e(TAG, "Error...", e);
@@ -100,38 +130,20 @@ public class WaveUtil {
         return new float[0];
     }
 
-    // Convert a portion of a byte array into an integer or a short
-    private static int byteArrayToNumber(byte[] bytes, int offset, int length) {
-        int value = 0; // Start with an initial value of 0
-
-        // Loop through the specified portion of the byte array
-        for (int i = 0; i < length; i++) {
-            // Extract a byte, ensure it's positive, and shift it to its position in the integer
-            value |= (bytes[offset + i] & 0xFF) << (8 * i);
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                return false;
         }
-
-        return value; // Return the resulting integer value
-    }
-
-    private static byte[] intToByteArray(int value) {
-        byte[] byteArray = new byte[4]; // Create a 4-byte array
-
-        // Convert and store the bytes in little-endian order
-        byteArray[0] = (byte) (value & 0xFF);         // Least significant byte (LSB)
-        byteArray[1] = (byte) ((value >> 8) & 0xFF);  // Second least significant byte
-        byteArray[2] = (byte) ((value >> 16) & 0xFF); // Second most significant byte
-        byteArray[3] = (byte) ((value >> 24) & 0xFF); // Most significant byte (MSB)
-
-        return byteArray;
+        buffer.flip();
+        return true;
     }
 
-    private static byte[] shortToByteArray(int value) {
-        byte[] byteArray = new byte[2]; // Create a 2-byte array
-
-        // Convert and store the bytes in little-endian order
-        byteArray[0] = (byte) (value & 0xFF);        // Least significant byte (LSB)
-        byteArray[1] = (byte) ((value >> 8) & 0xFF); // Most significant byte (MSB)
-
-        return byteArray;
+    private static boolean hasTag(ByteBuffer buffer, int offset, String tag) {
+        for (int i = 0; i < 4; i++) {
+            if (buffer.get(offset + i) != tag.charAt(i))
+                return false;
+        }
+        return true;
     }
 }
@@ -0,0 +1,135 @@
+package com.whispertflite.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// Streaming WAV writer: PCM is appended to a FileChannel while it is produced, the header is written with
+// placeholder sizes up front and patched when the writer is closed. Closing only rewrites two ints, so the
+// file is complete right after the last block, and memory use does not depend on the recording length.
+// A file left unpatched by a crash has 0 sizes, WaveUtil.getSamples() then reads up to the end of the file.
+// Not thread safe.
+public class WaveWriter implements AutoCloseable {
+    private static final int HEADER_SIZE = 44;
+    private static final int RIFF_SIZE_OFFSET = 4;
+    private static final int DATA_SIZE_OFFSET = 40;
+    private static final int STAGING_SAMPLES = 4096;
+
+    private final String mFilePath;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mBlockAlign;
+    private final ByteBuffer mPatch = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer mStaging = null;
+    private long mDataSize = 0;
+
+    public WaveWriter(String filePath, int sampleRate, int numChannels, int bytesPerSample) throws IOException {
+        mFilePath = filePath;
+        mFile = new RandomAccessFile(filePath, "rw");
+        mChannel = mFile.getChannel();
+        mBlockAlign = numChannels * bytesPerSample;
+
+        try {
+            mChannel.truncate(0);
+            writeFully(header(sampleRate, numChannels, bytesPerSample, 0), 0);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    // Header of a WAV file with dataSize bytes of PCM_16 (bytesPerSample 2) or PCM_FLOAT (4) samples
+    static ByteBuffer header(int sampleRate, int numChannels, int bytesPerSample, int dataSize) {
+        int audioFormat = (bytesPerSample == 2) ? 1 : (bytesPerSample == 4) ? 3 : 0; // PCM_16 = 1, PCM_FLOAT = 3
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[]{'R', 'I', 'F', 'F'});
+        header.putInt(36 + dataSize);                                   // Total file size - 8 bytes
+        header.put(new byte[]{'W', 'A', 'V', 'E', 'f', 'm', 't', ' '});
+        header.putInt(16);                                              // Sub-chunk size (16 for PCM)
+        header.putShort((short) audioFormat);
+        header.putShort((short) numChannels);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * numChannels * bytesPerSample);       // Byte rate
+        header.putShort((short) (numChannels * bytesPerSample));        // Block align
+        header.putShort((short) (bytesPerSample * 8));                  // Bits per sample
+        header.put(new byte[]{'d', 'a', 't', 'a'});
+        header.putInt(dataSize);
+        header.flip();
+        return header;
+    }
+
+    public String getFilePath() {
+        return mFilePath;
+    }
+
+    // Bytes of PCM written so far
+    public long getDataSize() {
+        return mDataSize;
+    }
+
+    // Append the remaining bytes of data (little endian samples), advancing its position
+    public void write(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        writeFully(data, HEADER_SIZE + mDataSize);
+        mDataSize += length;
+    }
+
+    // Append 16-bit samples
+    public void write(short[] samples, int offset, int length) throws IOException {
+        if (mStaging == null)
+            mStaging = ByteBuffer.allocateDirect(STAGING_SAMPLES * 2).order(ByteOrder.LITTLE_ENDIAN);
+
+        while (length > 0) {
+            int count = Math.min(length, STAGING_SAMPLES);
+            mStaging.clear();
+            mStaging.asShortBuffer().put(samples, offset, count);
+            mStaging.limit(count * 2);
+            write(mStaging);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    // Drop everything after the first dataSize bytes of PCM
+    public void truncate(long dataSize) throws IOException {
+        if (dataSize >= mDataSize)
+            return;
+        mDataSize = Math.max(0, dataSize - dataSize % mBlockAlign);
+        mChannel.truncate(HEADER_SIZE + mDataSize);
+    }
+
+    // Patch the chunk sizes and close the file
+    @Override
+    public void close() throws IOException {
+        try {
+            int dataSize = (int) Math.min(mDataSize, Integer.MAX_VALUE - 36);
+            patchInt(RIFF_SIZE_OFFSET, 36 + dataSize);
+            patchInt(DATA_SIZE_OFFSET, dataSize);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    // Close and delete the file, for recordings that are thrown away
+    public void discard() {
+        try {
+            mFile.close();
+        } catch (IOException ignored) {
+        }
+        new File(mFilePath).delete();
+    }
+
+    private void patchInt(long position, int value) throws IOException {
+        mPatch.clear();
+        mPatch.putInt(0, value);
+        writeFully(mPatch, position);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += mChannel.write(buffer, position);
+    }
+}
@@ -4,18 +4,21 @@ import static java.lang.Math.cos;
 import static java.lang.Math.log10;
 import static java.lang.Math.sin;
 
+import android.content.Context;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 public class WhisperUtil {
     private static final String TAG = "WhisperUtil";
@@ -27,9 +30,40 @@ public class WhisperUtil {
     public static final int WHISPER_CHUNK_SIZE = 30;
     public static final int WHISPER_MEL_LEN = 3000;
 
+    // Twiddle factors cos/sin(2 * pi * i / WHISPER_N_FFT)
+    private static final float[] FFT_COS = new float[WHISPER_N_FFT];
+    private static final float[] FFT_SIN = new float[WHISPER_N_FFT];
+
+    static {
+        for (int i = 0; i < WHISPER_N_FFT; i++) {
+            FFT_COS[i] = (float) cos(2.0 * Math.PI * i / WHISPER_N_FFT);
+            FFT_SIN[i] = (float) sin(2.0 * Math.PI * i / WHISPER_N_FFT);
+        }
+    }
+
+    // Mapped filters/vocab image, all fields little-endian:
+    //   header (MAPPED_HEADER_SIZE bytes): magic, version, flags, n_mel, n_fft, n_tokens,
+    //                                      filters offset, token offsets offset, token bytes offset, token bytes length
+    //   filters:       float[n_mel * n_fft]
+    //   token offsets: int[n_tokens + 1], token i is bytes[offsets[i] .. offsets[i + 1])
+    //   token bytes:   UTF-8 bytes of all tokens, including the additional/special ones
+    // Sections start at MAPPED_ALIGNMENT aligned offsets so they can be used in place.
+    public static final String MAPPED_SUFFIX = ".mapped";
+    private static final int LEGACY_MAGIC = 0x5553454e;
+    private static final int MAPPED_MAGIC = 0x4d565357;  // 'WSVM'
+    private static final int MAPPED_VERSION = 1;
+    private static final int MAPPED_HEADER_SIZE = 64;
+    private static final int MAPPED_ALIGNMENT = 16;
+    private static final int FLAG_MULTILINGUAL = 1;
+
     private final WhisperVocab vocab = new WhisperVocab();
     private final WhisperFilter filters = new WhisperFilter();
     private final WhisperMel mel = new WhisperMel();
+    private final float[] mHann = createHannWindow(WHISPER_N_FFT);
+    private final FftScratch mScratch = new FftScratch();  // frames computed on the calling thread
+    private MelWorkers mMelWorkers = null;
+    private byte[] mDecodeBytes = new byte[1024];
+    private int mDecodeLength = 0;
 
     // Helper functions definitions
     public int getTokenTranslate() {
@@ -65,59 +99,153 @@ public class WhisperUtil {
     }
 
     public String getWordFromToken(int token) {
-        return vocab.tokenToWord.get(token);
+        if (token < 0 || token >= vocab.nTokens)
+            return null;
+        int offset = vocab.offsets.get(token);
+        byte[] word = new byte[vocab.offsets.get(token + 1) - offset];
+        for (int i = 0; i < word.length; i++)
+            word[i] = vocab.bytes.get(offset + i);
+        return new String(word, StandardCharsets.UTF_8);
+    }
+
+    // Token decoding: bytes of consecutive tokens are accumulated in a reused buffer and converted
+    // to a String only once, so multi-byte UTF-8 characters split across tokens decode correctly.
+    public void resetDecoder() {
+        mDecodeLength = 0;
+    }
+
+    public void decodeToken(int token) {
+        if (token < 0 || token >= vocab.nTokens)
+            return;
+
+        int offset = vocab.offsets.get(token);
+        int len = vocab.offsets.get(token + 1) - offset;
+        if (mDecodeLength + len > mDecodeBytes.length)
+            mDecodeBytes = Arrays.copyOf(mDecodeBytes, Math.max(mDecodeBytes.length * 2, mDecodeLength + len));
+
+        for (int i = 0; i < len; i++)
+            mDecodeBytes[mDecodeLength++] = vocab.bytes.get(offset + i);
     }
 
-    // Load filters and vocab data from pre-generated filters_vocab_en.bin file
+    public String getDecodedText() {
+        return new String(mDecodeBytes, 0, mDecodeLength, StandardCharsets.UTF_8);
+    }
+
+    // Load filters and vocab data.
+    // vocabPath may point to a mapped image (see MAPPED_MAGIC) or to a legacy filters_vocab_*.bin file.
+    // Legacy files are converted once into vocabPath + MAPPED_SUFFIX and that image is used from then on.
     public boolean loadFiltersAndVocab(boolean multilingual, String vocabPath) throws IOException {
+        return loadFiltersAndVocab(multilingual, mapFile(vocabPath), vocabPath,
+                new File(vocabPath + MAPPED_SUFFIX), new File(vocabPath).lastModified());
+    }
 
-        // Read vocab file
-        byte[] bytes = Files.readAllBytes(Paths.get(vocabPath));
-        ByteBuffer vocabBuf = ByteBuffer.wrap(bytes);
-        vocabBuf.order(ByteOrder.nativeOrder());
+    // Same for a vocab asset mapped from the APK (see AssetUtil), the converted image of a legacy file
+    // goes to filesDir since the APK is read-only
+    public boolean loadFiltersAndVocab(boolean multilingual, Context context, String vocabAsset) throws IOException {
+        ByteBuffer vocabBuf = AssetUtil.map(context, vocabAsset).order(ByteOrder.LITTLE_ENDIAN);
+        return loadFiltersAndVocab(multilingual, vocabBuf, vocabAsset,
+                new File(context.getFilesDir(), vocabAsset + MAPPED_SUFFIX), AssetUtil.lastModified(context, vocabAsset));
+    }
+
+    private boolean loadFiltersAndVocab(boolean multilingual, ByteBuffer vocabBuf, String vocabName,
+                                        File cacheFile, long vocabModified) throws IOException {
         Log.d(TAG, "Vocab file size: " + vocabBuf.limit());
 
+        int magic = vocabBuf.getInt(0);
+        if (magic == MAPPED_MAGIC)
+            return bindImage(vocabBuf, multilingual, vocabName);
+
         // @magic:USEN
-        int magic = vocabBuf.getInt();
-        if (magic == 0x5553454e) {
-            Log.d(TAG, "Magic number: " + magic);
-        } else {
-            Log.d(TAG, "Invalid vocab file (bad magic: " + magic + "), " + vocabPath);
+        if (magic != LEGACY_MAGIC) {
+            Log.d(TAG, "Invalid vocab file (bad magic: " + magic + "), " + vocabName);
             return false;
         }
 
-        // Load mel filters
-        filters.nMel = vocabBuf.getInt();
-        filters.nFft = vocabBuf.getInt();
-        Log.d(TAG, "n_mel:" + filters.nMel + ", n_fft:" + filters.nFft);
+        if (cacheFile.exists() && cacheFile.lastModified() >= vocabModified) {
+            ByteBuffer cached = mapFile(cacheFile.getPath());
+            if (bindImage(cached, multilingual, cacheFile.getPath()))
+                return true;
+        }
+
+        ByteBuffer image = buildImage(vocabBuf, multilingual);
+        try (FileOutputStream out = new FileOutputStream(cacheFile)) {
+            out.getChannel().write(image.duplicate());
+            Log.d(TAG, "Mapped vocab image written: " + cacheFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write mapped vocab image, using it from memory", e);
+        }
+
+        return bindImage(image, multilingual, vocabName);
+    }
 
-        byte[] filterData = new byte[filters.nMel * filters.nFft * Float.BYTES];
-        vocabBuf.get(filterData, 0, filterData.length);
-        ByteBuffer filterBuf = ByteBuffer.wrap(filterData);
-        filterBuf.order(ByteOrder.nativeOrder());
+    // Convert a legacy filters_vocab_*.bin file into the mapped image format
+    public static void convertFiltersAndVocab(String legacyPath, String outPath, boolean multilingual) throws IOException {
+        ByteBuffer legacy = mapFile(legacyPath);
+        if (legacy.getInt(0) != LEGACY_MAGIC)
+            throw new IOException("Invalid vocab file (bad magic), " + legacyPath);
 
-        filters.data = new float[filters.nMel * filters.nFft];
-        for (int i = 0; filterBuf.hasRemaining(); i++) {
-            filters.data[i] = filterBuf.getFloat();
+        try (FileOutputStream out = new FileOutputStream(outPath)) {
+            out.getChannel().write(buildImage(legacy, multilingual));
         }
+    }
 
-        // Load vocabulary
-        int nVocab = vocabBuf.getInt();
-        Log.d(TAG, "nVocab: " + nVocab);
-        for (int i = 0; i < nVocab; i++) {
-            int len = vocabBuf.getInt();
-            byte[] wordBytes = new byte[len];
-            vocabBuf.get(wordBytes, 0, wordBytes.length);
-            String word = new String(wordBytes);
-            vocab.tokenToWord.put(i, word);
+    private static ByteBuffer mapFile(String path) throws IOException {
+        try (FileInputStream in = new FileInputStream(path)) {
+            FileChannel channel = in.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
         }
+    }
 
-        // Add additional vocab ids
-        int nVocabAdditional;
-        if (!multilingual) {
-            nVocabAdditional = vocab.nVocabEnglish;
-        } else {
-            nVocabAdditional = vocab.nVocabMultilingual;
+    // Point filters and vocab at views of a mapped image. Only the token offsets are scanned (one pass over
+    // the table), so a corrupt image is rejected here instead of failing in decodeToken().
+    private boolean bindImage(ByteBuffer image, boolean multilingual, String path) {
+        image.order(ByteOrder.LITTLE_ENDIAN);
+        if (image.limit() < MAPPED_HEADER_SIZE || image.getInt(0) != MAPPED_MAGIC) {
+            Log.d(TAG, "Invalid mapped vocab image, " + path);
+            return false;
+        }
+
+        int version = image.getInt(4);
+        boolean imageMultilingual = (image.getInt(8) & FLAG_MULTILINGUAL) != 0;
+        if (version != MAPPED_VERSION || imageMultilingual != multilingual) {
+            Log.d(TAG, "Mapped vocab image mismatch (version: " + version + ", multilingual: " + imageMultilingual + "), " + path);
+            return false;
+        }
+
+        int nMel = image.getInt(12);
+        int nFft = image.getInt(16);
+        int nTokens = image.getInt(20);
+        int filtersOffset = image.getInt(24);
+        int offsetsOffset = image.getInt(28);
+        int bytesOffset = image.getInt(32);
+        int bytesLength = image.getInt(36);
+        if (nMel < 0 || nFft < 0 || nTokens < 0 || filtersOffset < MAPPED_HEADER_SIZE || bytesLength < 0
+                || (long) bytesOffset + bytesLength > image.limit()
+                || (long) offsetsOffset + (nTokens + 1L) * Integer.BYTES > bytesOffset
+                || (long) filtersOffset + (long) nMel * nFft * Float.BYTES > offsetsOffset) {
+            Log.d(TAG, "Truncated mapped vocab image, " + path);
+            return false;
+        }
+
+        IntBuffer offsets = slice(image, offsetsOffset, (nTokens + 1) * Integer.BYTES).asIntBuffer();
+        if (!validOffsets(offsets, nTokens, bytesLength)) {
+            Log.d(TAG, "Invalid token offsets in mapped vocab image, " + path);
+            return false;
+        }
+
+        // Load mel filters
+        filters.nMel = nMel;
+        filters.nFft = nFft;
+        filters.data = slice(image, filtersOffset, nMel * nFft * Float.BYTES).asFloatBuffer();
+        Log.d(TAG, "n_mel:" + filters.nMel + ", n_fft:" + filters.nFft);
+
+        // Load vocabulary
+        vocab.nTokens = nTokens;
+        vocab.offsets = offsets;
+        vocab.bytes = slice(image, bytesOffset, bytesLength);
+        Log.d(TAG, "nTokens: " + nTokens);
+
+        if (multilingual) {
             vocab.tokenEOT++;
             vocab.tokenSOT++;
             vocab.tokenPREV++;
@@ -126,72 +254,208 @@ public class WhisperUtil {
             vocab.tokenBEG++;
         }
 
+        return true;
+    }
+
+    // Token i spans [offsets[i], offsets[i + 1]) of the bytes section: starts at 0, never decreases, ends inside it
+    private static boolean validOffsets(IntBuffer offsets, int nTokens, int bytesLength) {
+        if (offsets.get(0) != 0 || offsets.get(nTokens) > bytesLength)
+            return false;
+        int prev = 0;
+        for (int i = 1; i <= nTokens; i++) {
+            int offset = offsets.get(i);
+            if (offset < prev)
+                return false;
+            prev = offset;
+        }
+        return true;
+    }
+
+    private static ByteBuffer slice(ByteBuffer image, int offset, int length) {
+        ByteBuffer view = image.duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int align(int offset) {
+        return (offset + MAPPED_ALIGNMENT - 1) & -MAPPED_ALIGNMENT;
+    }
+
+    // Build a mapped image from a legacy file: magic, n_mel, n_fft, filters, n_vocab, (len, bytes) * n_vocab
+    private static ByteBuffer buildImage(ByteBuffer legacy, boolean multilingual) {
+        ByteBuffer vocabBuf = legacy.duplicate().order(ByteOrder.nativeOrder());
+        vocabBuf.position(Integer.BYTES);
+
+        int nMel = vocabBuf.getInt();
+        int nFft = vocabBuf.getInt();
+        int filtersStart = vocabBuf.position();
+        vocabBuf.position(filtersStart + nMel * nFft * Float.BYTES);
+
+        // First pass sizes the token bytes
+        int nVocab = vocabBuf.getInt();
+        int vocabStart = vocabBuf.position();
+        int totalBytes = 0;
+        for (int i = 0; i < nVocab; i++) {
+            int len = vocabBuf.getInt();
+            vocabBuf.position(vocabBuf.position() + len);
+            totalBytes += len;
+        }
+
+        // Add additional vocab ids
+        WhisperVocab ids = new WhisperVocab();
+        int shift = multilingual ? 1 : 0;
+        int nVocabAdditional = multilingual ? ids.nVocabMultilingual : ids.nVocabEnglish;
+        byte[][] additionalWords = new byte[Math.max(0, nVocabAdditional - nVocab)][];
         for (int i = nVocab; i < nVocabAdditional; i++) {
             String word;
-            if (i > vocab.tokenBEG) {
-                word = "[_TT_" + (i - vocab.tokenBEG) + "]";
-            } else if (i == vocab.tokenEOT) {
+            if (i > ids.tokenBEG + shift) {
+                word = "[_TT_" + (i - ids.tokenBEG - shift) + "]";
+            } else if (i == ids.tokenEOT + shift) {
                 word = "[_EOT_]";
-            } else if (i == vocab.tokenSOT) {
+            } else if (i == ids.tokenSOT + shift) {
                 word = "[_SOT_]";
-            } else if (i == vocab.tokenPREV) {
+            } else if (i == ids.tokenPREV + shift) {
                 word = "[_PREV_]";
-            } else if (i == vocab.tokenNOT) {
+            } else if (i == ids.tokenNOT + shift) {
                 word = "[_NOT_]";
-            } else if (i == vocab.tokenBEG) {
+            } else if (i == ids.tokenBEG + shift) {
                 word = "[_BEG_]";
             } else {
                 word = "[_extra_token_" + i + "]";
             }
 
-            vocab.tokenToWord.put(i, word);
-            //Log.d(TAG, "i= " + i + ", word= " + word);
+            additionalWords[i - nVocab] = word.getBytes(StandardCharsets.UTF_8);
+            totalBytes += additionalWords[i - nVocab].length;
         }
 
-        return true;
+        int nTokens = nVocab + additionalWords.length;
+        int filtersOffset = MAPPED_HEADER_SIZE;
+        int offsetsOffset = align(filtersOffset + nMel * nFft * Float.BYTES);
+        int bytesOffset = align(offsetsOffset + (nTokens + 1) * Integer.BYTES);
+
+        ByteBuffer image = ByteBuffer.allocate(bytesOffset + totalBytes).order(ByteOrder.LITTLE_ENDIAN);
+        image.putInt(0, MAPPED_MAGIC);
+        image.putInt(4, MAPPED_VERSION);
+        image.putInt(8, multilingual ? FLAG_MULTILINGUAL : 0);
+        image.putInt(12, nMel);
+        image.putInt(16, nFft);
+        image.putInt(20, nTokens);
+        image.putInt(24, filtersOffset);
+        image.putInt(28, offsetsOffset);
+        image.putInt(32, bytesOffset);
+        image.putInt(36, totalBytes);
+
+        for (int i = 0; i < nMel * nFft; i++)
+            image.putFloat(filtersOffset + i * Float.BYTES, vocabBuf.getFloat(filtersStart + i * Float.BYTES));
+
+        // Second pass copies the token bytes
+        int offset = 0;
+        vocabBuf.position(vocabStart);
+        for (int i = 0; i < nVocab; i++) {
+            int len = vocabBuf.getInt();
+            image.putInt(offsetsOffset + i * Integer.BYTES, offset);
+            for (int j = 0; j < len; j++)
+                image.put(bytesOffset + offset + j, vocabBuf.get());
+            offset += len;
+        }
+
+        for (int i = 0; i < additionalWords.length; i++) {
+            image.putInt(offsetsOffset + (nVocab + i) * Integer.BYTES, offset);
+            for (int j = 0; j < additionalWords[i].length; j++)
+                image.put(bytesOffset + offset + j, additionalWords[i][j]);
+            offset += additionalWords[i].length;
+        }
+        image.putInt(offsetsOffset + nTokens * Integer.BYTES, offset);
+
+        return image;
     }
 
     // nSamples size => WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE => 480000
     public float[] getMelSpectrogram(float[] samples, int nSamples, int nThreads) {
+        mel.nMel = WHISPER_N_MEL;
+        mel.nLen = nSamples / WHISPER_HOP_LENGTH;
+        if (mel.data == null || mel.data.length != mel.nMel * mel.nLen)
+            mel.data = new float[mel.nMel * mel.nLen];
 
-        int fftSize = WHISPER_N_FFT;
-        int fftStep = WHISPER_HOP_LENGTH;
+        return getMelSpectrogram(samples, nSamples, nThreads, mel.data);
+    }
 
-        mel.nMel = WHISPER_N_MEL;
-        mel.nLen = nSamples / fftStep;
-        mel.data = new float[mel.nMel * mel.nLen];
+    // Same as above, writing into melOut (at least WHISPER_N_MEL * nSamples / WHISPER_HOP_LENGTH long).
+    // Only reads shared filter data, so it may run while another thread decodes tokens.
+    public float[] getMelSpectrogram(float[] samples, int nSamples, int nThreads, float[] melOut) {
+        computeMel(samples, nSamples, nThreads, melOut, null);
+        return melOut;
+    }
 
-        float[] hann = new float[fftSize];
-        for (int i = 0; i < fftSize; i++) {
-            hann[i] = (float) (0.5 * (1.0 - cos(2.0 * Math.PI * i / fftSize)));
+    // Same as above, writing into melOut from index 0 (e.g. straight into a model input buffer)
+    public void getMelSpectrogram(float[] samples, int nSamples, int nThreads, FloatBuffer melOut) {
+        computeMel(samples, nSamples, nThreads, null, melOut);
+    }
+
+    // Log-mel into melArray or melBuffer. With nThreads <= 1 the frames are computed on the calling thread,
+    // otherwise on the persistent mel workers; neither allocates once the workers are started.
+    private synchronized void computeMel(float[] samples, int nSamples, int nThreads,
+                                         float[] melArray, FloatBuffer melBuffer) {
+        int size = WHISPER_N_MEL * (nSamples / WHISPER_HOP_LENGTH);
+
+        if (nThreads <= 1) {
+            melFrames(samples, nSamples, melArray, melBuffer, 0, 1, mScratch);
+        } else {
+            if (mMelWorkers == null || mMelWorkers.size() != nThreads) {
+                if (mMelWorkers != null)
+                    mMelWorkers.stop();
+                mMelWorkers = new MelWorkers(nThreads);
+            }
+            mMelWorkers.run(samples, nSamples, melArray, melBuffer);
+        }
+
+        // clamping and normalization
+        double mmax = -1e20;
+        for (int i = 0; i < size; i++) {
+            float value = melArray != null ? melArray[i] : melBuffer.get(i);
+            if (value > mmax) {
+                mmax = value;
+            }
         }
 
+        mmax -= 8.0;
+        for (int i = 0; i < size; i++) {
+            float value = melArray != null ? melArray[i] : melBuffer.get(i);
+            if (value < mmax) {
+                value = (float) mmax;
+            }
+            value = (float) ((value + 4.0) / 4.0);
+            if (melArray != null)
+                melArray[i] = value;
+            else
+                melBuffer.put(i, value);
+        }
+    }
+
+    // Stop the mel workers, they are started again by the next multi-threaded spectrogram
+    public synchronized void release() {
+        if (mMelWorkers != null) {
+            mMelWorkers.stop();
+            mMelWorkers = null;
+        }
+    }
+
+    // Log-mel values of frames first, first + step, ... into melArray or melBuffer (mel-major,
+    // nSamples / WHISPER_HOP_LENGTH frames)
+    private void melFrames(float[] samples, int nSamples, float[] melArray, FloatBuffer melBuffer,
+                           int first, int step, FftScratch scratch) {
+        int fftSize = WHISPER_N_FFT;
+        int fftStep = WHISPER_HOP_LENGTH;
+        int nMel = WHISPER_N_MEL;
+        int nLen = nSamples / fftStep;
         int nFft = 1 + fftSize / 2;
+        float[] hann = mHann;
 
-/////////////// UNCOMMENT below block to use multithreaded mel calculation /////////////////////////
-        // Calculate mel values using multiple threads
-        List<Thread> workers = new ArrayList<>();
-        for (int iw = 0; iw < nThreads; iw++) {
-            final int ith = iw;  // Capture iw in a final variable for use in the lambda
-            Thread thread = new Thread(() -> {
-                // Inside the thread, ith will have the same value as iw (first value is 0)
-                Log.d(TAG, "Thread " + ith + " started.");
-
-                float[] fftIn = new float[fftSize];
-                Arrays.fill(fftIn, 0.0f);
-                float[] fftOut = new float[fftSize * 2];
-
-                for (int i = ith; i < mel.nLen; i += nThreads) {
-/////////////// END of Block ///////////////////////////////////////////////////////////////////////
-
-/////////////// COMMENT below block to use multithreaded mel calculation ///////////////////////////
-//        float[] fftIn = new float[fftSize];
-//        Arrays.fill(fftIn, 0.0f);
-//        float[] fftOut = new float[fftSize * 2];
-//
-//        for (int i = 0; i < mel.nLen; i++) {
-/////////////// END of Block ///////////////////////////////////////////////////////////////////////
+        float[] fftIn = scratch.input;
+        float[] fftOut = scratch.output;
 
+        for (int i = first; i < nLen; i += step) {
             int offset = i * fftStep;
 
             // apply Hanning window
@@ -204,7 +468,7 @@ public class WhisperUtil {
             }
 
             // FFT -> mag^2
-            fft(fftIn, fftOut);
+            fft(fftIn, fftOut, fftSize, scratch, 0);
             for (int j = 0; j < fftSize; j++) {
                 fftOut[j] = fftOut[2 * j] * fftOut[2 * j] + fftOut[2 * j + 1] * fftOut[2 * j + 1];
             }
@@ -214,10 +478,10 @@ public class WhisperUtil {
             }
 
             // mel spectrogram
-            for (int j = 0; j < mel.nMel; j++) {
+            for (int j = 0; j < nMel; j++) {
                 double sum = 0.0;
                 for (int k = 0; k < nFft; k++) {
-                    sum += (fftOut[k] * filters.data[j * nFft + k]);
+                    sum += (fftOut[k] * filters.data.get(j * nFft + k));
                 }
 
                 if (sum < 1e-10) {
@@ -225,62 +489,40 @@ public class WhisperUtil {
                 }
 
                 sum = log10(sum);
-                mel.data[j * mel.nLen + i] = (float) sum;
-            }
-        }
-
-/////////////// UNCOMMENT below block to use multithreaded mel calculation /////////////////////////
-            });
-            workers.add(thread);
-            thread.start();
-        }
-
-        // Wait for all threads to finish
-        for (Thread worker : workers) {
-            try {
-                worker.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-/////////////// END of Block ///////////////////////////////////////////////////////////////////////
-
-        // clamping and normalization
-        double mmax = -1e20;
-        for (int i = 0; i < mel.nMel * mel.nLen; i++) {
-            if (mel.data[i] > mmax) {
-                mmax = mel.data[i];
+                if (melArray != null)
+                    melArray[j * nLen + i] = (float) sum;
+                else
+                    melBuffer.put(j * nLen + i, (float) sum);
             }
         }
+    }
 
-        mmax -= 8.0;
-        for (int i = 0; i < mel.nMel * mel.nLen; i++) {
-            if (mel.data[i] < mmax) {
-                mel.data[i] = (float) mmax;
-            }
-            mel.data[i] = (float) ((mel.data[i] + 4.0) / 4.0);
+    private static float[] createHannWindow(int fftSize) {
+        float[] hann = new float[fftSize];
+        for (int i = 0; i < fftSize; i++) {
+            hann[i] = (float) (0.5 * (1.0 - cos(2.0 * Math.PI * i / fftSize)));
         }
-
-        return mel.data;
+        return hann;
     }
 
-    private void dft(float[] input, float[] output) {
-        int inSize = input.length;
+    // Transform sizes divide WHISPER_N_FFT, so all angles come from the FFT_COS/FFT_SIN tables
+    private static void dft(float[] input, float[] output, int inSize) {
+        int stride = WHISPER_N_FFT / inSize;
         for (int k = 0; k < inSize; k++) {
             float re = 0.0f;
             float im = 0.0f;
             for (int n = 0; n < inSize; n++) {
-                float angle = (float) (2 * Math.PI * k * n / inSize);
-                re += input[n] * cos(angle);
-                im -= input[n] * sin(angle);
+                int angle = (k * n % inSize) * stride;
+                re += input[n] * FFT_COS[angle];
+                im -= input[n] * FFT_SIN[angle];
             }
             output[k * 2 + 0] = re;
             output[k * 2 + 1] = im;
         }
     }
 
-    private void fft(float[] input, float[] output) {
-        int inSize = input.length;
+    // Radix-2 split down to odd sizes, the halves of each level live in scratch
+    private static void fft(float[] input, float[] output, int inSize, FftScratch scratch, int depth) {
         if (inSize == 1) {
             output[0] = input[0];
             output[1] = 0.0f;
@@ -288,34 +530,26 @@ public class WhisperUtil {
         }
 
         if (inSize % 2 == 1) {
-            dft(input, output);
+            dft(input, output, inSize);
             return;
         }
 
-        float[] even = new float[inSize / 2];
-        float[] odd = new float[inSize / 2];
-
-        int indxEven = 0;
-        int indxOdd = 0;
-        for (int i = 0; i < inSize; i++) {
-            if (i % 2 == 0) {
-                even[indxEven] = input[i];
-                indxEven++;
-            } else {
-                odd[indxOdd] = input[i];
-                indxOdd++;
-            }
+        float[] even = scratch.even[depth];
+        float[] odd = scratch.odd[depth];
+        for (int i = 0; i < inSize / 2; i++) {
+            even[i] = input[2 * i];
+            odd[i] = input[2 * i + 1];
         }
 
-        float[] evenFft = new float[inSize];
-        float[] oddFft = new float[inSize];
+        float[] evenFft = scratch.evenFft[depth];
+        float[] oddFft = scratch.oddFft[depth];
 
-        fft(even, evenFft);
-        fft(odd, oddFft);
+        fft(even, evenFft, inSize / 2, scratch, depth + 1);
+        fft(odd, oddFft, inSize / 2, scratch, depth + 1);
+        int stride = WHISPER_N_FFT / inSize;
         for (int k = 0; k < inSize / 2; k++) {
-            float theta = (float) (2 * Math.PI * k / inSize);
-            float re = (float) cos(theta);
-            float im = (float) -sin(theta);
+            float re = FFT_COS[k * stride];
+            float im = -FFT_SIN[k * stride];
             float reOdd = oddFft[2 * k + 0];
             float imOdd = oddFft[2 * k + 1];
             output[2 * k + 0] = evenFft[2 * k + 0] + re * reOdd - im * imOdd;
@@ -325,6 +559,132 @@ public class WhisperUtil {
         }
     }
 
+    // Buffers of one thread's frames: the windowed input, the spectrum and the halves of every FFT level
+    private static class FftScratch {
+        final float[] input = new float[WHISPER_N_FFT];
+        final float[] output = new float[WHISPER_N_FFT * 2];
+        final float[][] even;
+        final float[][] odd;
+        final float[][] evenFft;
+        final float[][] oddFft;
+
+        FftScratch() {
+            int levels = 0;
+            for (int n = WHISPER_N_FFT; n > 1 && n % 2 == 0; n /= 2)
+                levels++;
+
+            even = new float[levels][];
+            odd = new float[levels][];
+            evenFft = new float[levels][];
+            oddFft = new float[levels][];
+            int n = WHISPER_N_FFT;
+            for (int d = 0; d < levels; d++, n /= 2) {
+                even[d] = new float[n / 2];
+                odd[d] = new float[n / 2];
+                evenFft[d] = new float[n];
+                oddFft[d] = new float[n];
+            }
+        }
+    }
+
+    // Persistent threads for multi-threaded spectrograms. The calling thread computes share 0 and worker i
+    // share i (every n-th frame); jobs are handed over through fields under the monitor, so nothing is
+    // allocated per request.
+    private class MelWorkers {
+        private final Thread[] mThreads;
+        private final FftScratch[] mWorkerScratch;
+
+        private long mGeneration = 0;
+        private int mRunning = 0;
+        private float[] mJobSamples;
+        private int mJobNSamples;
+        private float[] mJobArray;
+        private FloatBuffer mJobBuffer;
+
+        MelWorkers(int nThreads) {
+            mThreads = new Thread[nThreads - 1];
+            mWorkerScratch = new FftScratch[nThreads - 1];
+            for (int i = 0; i < mThreads.length; i++) {
+                final int worker = i;
+                mWorkerScratch[i] = new FftScratch();
+                mThreads[i] = new Thread(() -> workerLoop(worker), "MelWorker" + (i + 1));
+                mThreads[i].setDaemon(true);
+                mThreads[i].start();
+            }
+        }
+
+        int size() {
+            return mThreads.length + 1;
+        }
+
+        void run(float[] samples, int nSamples, float[] melArray, FloatBuffer melBuffer) {
+            synchronized (this) {
+                mJobSamples = samples;
+                mJobNSamples = nSamples;
+                mJobArray = melArray;
+                mJobBuffer = melBuffer;
+                mRunning = mThreads.length;
+                mGeneration++;
+                notifyAll();
+            }
+
+            melFrames(samples, nSamples, melArray, melBuffer, 0, size(), mScratch);
+
+            boolean interrupted = false;
+            synchronized (this) {
+                while (mRunning > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                mJobSamples = null;
+                mJobArray = null;
+                mJobBuffer = null;
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        void stop() {
+            for (Thread thread : mThreads)
+                thread.interrupt();
+        }
+
+        private void workerLoop(int worker) {
+            long seen = 0;
+            while (true) {
+                float[] samples;
+                int nSamples;
+                float[] melArray;
+                FloatBuffer melBuffer;
+                synchronized (this) {
+                    try {
+                        while (mGeneration == seen)
+                            wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    seen = mGeneration;
+                    samples = mJobSamples;
+                    nSamples = mJobNSamples;
+                    melArray = mJobArray;
+                    melBuffer = mJobBuffer;
+                }
+
+                try {
+                    melFrames(samples, nSamples, melArray, melBuffer, worker + 1, size(), mWorkerScratch[worker]);
+                } finally {
+                    synchronized (this) {
+                        if (--mRunning == 0)
+                            notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
     // Helper class definitions
     private static class WhisperVocab {
         int[] golden_generated_ids = {
@@ -347,13 +707,17 @@ public class WhisperUtil {
         // Vocab types
         final int nVocabEnglish = 51864;       // for english only vocab
         final int nVocabMultilingual = 51865;  // for multilingual vocab
-        Map<Integer, String> tokenToWord = new HashMap<>();
+
+        // Token bytes indexed by id: token i is bytes[offsets[i] .. offsets[i + 1])
+        int nTokens = 0;
+        ByteBuffer bytes;
+        IntBuffer offsets;
     }
 
     private static class WhisperFilter {
         int nMel = 0;
         int nFft = 0;
-        float[] data;
+        FloatBuffer data;
     }
 
     private static class WhisperMel {
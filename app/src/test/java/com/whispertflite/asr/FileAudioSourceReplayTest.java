@@ -0,0 +1,118 @@
+package com.whispertflite.asr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.whispertflite.utils.WaveUtil;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Replays the cpp/samples recordings through FileAudioSource and the Recorder on the JVM.
+// android.util.Log is stubbed for unit tests (returnDefaultValues) and the Context is only needed for the
+// microphone, so the capture and endpointing paths run unchanged.
+public class FileAudioSourceReplayTest {
+    private static final File SAMPLES = new File("src/main/cpp/samples");
+
+    @Test
+    public void replaysEverySampleCompletely() throws Exception {
+        File[] files = SAMPLES.listFiles((dir, name) -> name.endsWith(".pcm"));
+        assumeTrue(files != null && files.length > 0);
+
+        for (File file : files) {
+            FileAudioSource source = new FileAudioSource(file.getPath(), false);
+            Recorder recorder = newRecorder(source);
+            CountDownLatch done = new CountDownLatch(1);
+            recorder.setListener(new Listener(null, done));
+
+            recorder.startContinuous();
+            awaitStopped(recorder);
+
+            assertEquals(file.getName(), file.length() / 4, source.getDeliveredSamples());
+            assertEquals(file.getName(), file.length() / 4, recorder.getPosition());
+        }
+    }
+
+    @Test
+    public void endpointsSpeechOfRecording() throws Exception {
+        File file = new File(SAMPLES, "english_test_3_bili_16000_mono_float.pcm");
+        assumeTrue(file.exists());
+
+        List<float[]> utterances = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        Recorder recorder = newRecorder(new FileAudioSource(file.getPath(), false));
+        recorder.setListener(new Listener(utterances, done));
+
+        recorder.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        awaitStopped(recorder);
+
+        // One utterance with speech, shorter than the whole recording
+        assertEquals(1, utterances.size());
+        int length = utterances.get(0).length;
+        assertTrue(length > Recorder.SAMPLE_RATE);
+        assertTrue(length < file.length() / 4);
+    }
+
+    @Test
+    public void wavAndPcmSamplesMatch() {
+        File wav = new File(SAMPLES, "english_test_3_bili.wav");
+        File pcm = new File(SAMPLES, "english_test_3_bili_16000_mono_float.pcm");
+        assumeTrue(wav.exists() && pcm.exists());
+
+        float[] fromWav = WaveUtil.getSamples(wav.getPath());
+        FileAudioSource source = new FileAudioSource(pcm.getPath(), false);
+        assertTrue(source.start());
+        ByteBuffer buffer = ByteBuffer.allocate(2 * fromWav.length).order(ByteOrder.nativeOrder());
+        int samples = source.read(buffer, buffer.capacity()) / 2;
+        source.stop();
+
+        assertEquals(fromWav.length, samples);
+        for (int i = 0; i < samples; i++)
+            assertEquals(fromWav[i], buffer.getShort(i * 2) / 32768.0f, 2e-3f);
+    }
+
+    private static Recorder newRecorder(IAudioSource source) {
+        Recorder recorder = new Recorder(null);
+        recorder.setAudioSource(source);
+        recorder.setPersistToFile(false);
+        return recorder;
+    }
+
+    private static void awaitStopped(Recorder recorder) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (recorder.isInProgress() && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        assertFalse(recorder.isInProgress());
+    }
+
+    private static class Listener implements IRecorderListener {
+        private final List<float[]> mUtterances;
+        private final CountDownLatch mDone;
+
+        Listener(List<float[]> utterances, CountDownLatch done) {
+            mUtterances = utterances;
+            mDone = done;
+        }
+
+        @Override
+        public void onUpdateReceived(String message) {
+        }
+
+        @Override
+        public void onDataReceived(float[] samples) {
+            if (mUtterances != null)
+                mUtterances.add(samples);
+            mDone.countDown();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.whispertflite.asr;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalAgreementTest {
+    private LocalAgreement mAgreement;
+
+    @Before
+    public void setUp() {
+        mAgreement = new LocalAgreement();
+    }
+
+    @Test
+    public void firstHypothesisStaysPartial() {
+        assertEquals("", mAgreement.insert("the quick brown"));
+        assertEquals("the quick brown", mAgreement.getPartial());
+        assertEquals("", mAgreement.getTranscript());
+    }
+
+    @Test
+    public void commitsAgreedPrefix() {
+        mAgreement.insert("the quick brown");
+        assertEquals("the quick", mAgreement.insert("the quick fox jumps"));
+        assertEquals("fox jumps", mAgreement.getPartial());
+        assertEquals("fox jumps", mAgreement.insert("the quick fox jumps over"));
+        assertEquals("over", mAgreement.getPartial());
+        assertEquals("the quick fox jumps", mAgreement.getTranscript());
+    }
+
+    @Test
+    public void agreementIgnoresCaseAndPunctuation() {
+        mAgreement.insert("Hello world");
+        // The latest hypothesis is emitted
+        assertEquals("hello, World.", mAgreement.insert("hello, World. how"));
+        assertEquals("how", mAgreement.getPartial());
+    }
+
+    @Test
+    public void committedTextIsNotRetracted() {
+        mAgreement.insert("one two three");
+        mAgreement.insert("one two four");
+        assertEquals("", mAgreement.insert("one five six"));
+        assertEquals("one two", mAgreement.getTranscript());
+        // Only the words after the committed ones are partial
+        assertEquals("six", mAgreement.getPartial());
+    }
+
+    @Test
+    public void trimKeepsPartialUncommitted() {
+        mAgreement.insert("we went to the");
+        mAgreement.insert("we went to the market and");
+        assertEquals("we went to the", mAgreement.getTranscript());
+
+        mAgreement.trim();
+        assertEquals("market and", mAgreement.getPartial());
+        assertEquals("we went to the", mAgreement.getTranscript());
+
+        // The new window still holds the end of the committed words, they are not repeated
+        assertEquals("market and", mAgreement.insert("to the market and bought"));
+        assertEquals("bought", mAgreement.getPartial());
+        assertEquals("we went to the market and", mAgreement.getTranscript());
+    }
+
+    @Test
+    public void trimmedPartialCanBeRevised() {
+        mAgreement.insert("we went to the");
+        mAgreement.insert("we went to the market and");
+        mAgreement.trim();
+
+        assertEquals("", mAgreement.insert("the marked end"));
+        assertEquals("marked end", mAgreement.getPartial());
+        assertEquals("marked", mAgreement.insert("marked and"));
+        assertEquals("we went to the marked", mAgreement.getTranscript());
+    }
+
+    @Test
+    public void flushCommitsPartial() {
+        mAgreement.insert("good morning every");
+        mAgreement.insert("good morning everyone");
+        assertEquals("everyone", mAgreement.flush());
+        assertEquals("", mAgreement.getPartial());
+        assertEquals("good morning everyone", mAgreement.getTranscript());
+    }
+
+    @Test
+    public void resetClearsTranscript() {
+        mAgreement.insert("a b");
+        mAgreement.insert("a b c");
+        mAgreement.reset();
+        assertEquals("", mAgreement.getTranscript());
+        assertEquals("", mAgreement.getPartial());
+        assertEquals("", mAgreement.insert("a b"));
+    }
+}
@@ -0,0 +1,105 @@
+package com.whispertflite.asr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.whispertflite.utils.WhisperUtil;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class TranscriptStitcherTest {
+    private static final int RATE = WhisperUtil.WHISPER_SAMPLE_RATE;
+    private static final int OVERLAP = TranscriptStitcher.OVERLAP_SECONDS * RATE;
+
+    @Test
+    public void singleChunkIsUnchanged() {
+        assertEquals("Hello, world.", TranscriptStitcher.stitch(Arrays.asList("Hello, world.")));
+    }
+
+    @Test
+    public void overlapIsKeptOnce() {
+        assertEquals("a b c d e f g h", TranscriptStitcher.stitch(Arrays.asList("a b c d e f", "d e f g h")));
+        assertEquals("a b c d e f g h i", TranscriptStitcher.stitch(Arrays.asList("a b c d", "c d e f", "e f g h i")));
+    }
+
+    @Test
+    public void garbledEdgeWordsAreSkipped() {
+        assertEquals("we went to the market and bought apples",
+                TranscriptStitcher.stitch(Arrays.asList("we went to the market and bou", "the market and bought apples")));
+        assertEquals("we went to the market and bought apples",
+                TranscriptStitcher.stitch(Arrays.asList("we went to the market and", "e market and bought apples")));
+    }
+
+    @Test
+    public void singleWordIsNotAnOverlap() {
+        assertEquals("i saw the the end", TranscriptStitcher.stitch(Arrays.asList("i saw the", "the end")));
+    }
+
+    @Test
+    public void overlapIgnoresCaseAndPunctuation() {
+        assertEquals("Hello, world. again", TranscriptStitcher.stitch(Arrays.asList("Hello, world.", "hello world again")));
+    }
+
+    @Test
+    public void overlapIsBounded() {
+        assertEquals("a b c d a b c d", TranscriptStitcher.stitch(Arrays.asList("a b c d", "a b c d"), 1));
+        assertEquals("a b c d", TranscriptStitcher.stitch(Arrays.asList("a b c d", "a b c d"), 4));
+    }
+
+    @Test
+    public void chunksCoverInput() {
+        int chunk = TranscriptStitcher.CHUNK_SAMPLES;
+        assertEquals(1, TranscriptStitcher.chunkCount(1));
+        assertEquals(1, TranscriptStitcher.chunkCount(chunk));
+        assertEquals(2, TranscriptStitcher.chunkCount(chunk + 1));
+        assertEquals(2, TranscriptStitcher.chunkCount(2 * chunk - OVERLAP));
+        assertEquals(3, TranscriptStitcher.chunkCount(2 * chunk - OVERLAP + 1));
+
+        float[] samples = ramp(3 * chunk);
+        int count = TranscriptStitcher.chunkCount(samples.length);
+        float[] previous = null;
+        for (int i = 0; i < count; i++) {
+            float[] current = TranscriptStitcher.chunk(samples, i);
+            if (previous == null) {
+                assertEquals(0.0f, current[0], 0.0f);
+            } else {
+                // Consecutive chunks overlap by OVERLAP_SECONDS
+                assertArrayEquals(Arrays.copyOfRange(previous, previous.length - OVERLAP, previous.length),
+                        Arrays.copyOfRange(current, 0, OVERLAP), 0.0f);
+            }
+            previous = current;
+        }
+        assertEquals(samples.length - 1, previous[previous.length - 1], 0.0f);
+    }
+
+    @Test
+    public void transcribesLongAudioOncePerSecond() {
+        // Every second of audio is one word, so the stitched text must name each second once
+        float[] samples = new float[95 * RATE];
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = i / RATE;
+
+        String text = TranscriptStitcher.transcribe(samples, window -> {
+            Set<String> words = new LinkedHashSet<>();
+            for (float second : window)
+                words.add("s" + (int) second);
+            return String.join(" ", words);
+        });
+
+        StringBuilder expected = new StringBuilder("s0");
+        for (int second = 1; second < 95; second++)
+            expected.append(" s").append(second);
+        assertEquals(expected.toString(), text);
+    }
+
+    private static float[] ramp(int length) {
+        float[] samples = new float[length];
+        for (int i = 0; i < length; i++)
+            samples[i] = i;
+        return samples;
+    }
+}
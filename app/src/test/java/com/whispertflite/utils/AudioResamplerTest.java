@@ -0,0 +1,117 @@
+package com.whispertflite.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AudioResamplerTest {
+    private static final int OUTPUT_RATE = WhisperUtil.WHISPER_SAMPLE_RATE;
+
+    @Test
+    public void outputLengthOfCommonRates() {
+        int[] rates = {8000, 11025, 22050, 44100, 48000};
+        for (int rate : rates) {
+            AudioResampler resampler = new AudioResampler(rate, OUTPUT_RATE, 1);
+            assertEquals(OUTPUT_RATE, resampler.getOutputFrames(rate));
+            assertEquals(rate + " Hz", OUTPUT_RATE, resample(resampler, new float[rate], 1, 441).length);
+        }
+    }
+
+    @Test
+    public void streamingMatchesOneCall() {
+        float[] input = tone(44100, 44100, 1, 440.0);
+        float[] whole = resample(new AudioResampler(44100, OUTPUT_RATE, 1), input, 1, input.length);
+        float[] blocks = resample(new AudioResampler(44100, OUTPUT_RATE, 1), input, 1, 333);
+        assertEquals(new AudioResampler(44100, OUTPUT_RATE, 1).getOutputFrames(input.length), whole.length);
+        assertArrayEquals(whole, blocks, 0.0f);
+    }
+
+    @Test
+    public void passthroughKeepsSamples() {
+        float[] input = tone(OUTPUT_RATE, 1000, 1, 440.0);
+        assertArrayEquals(input, resample(new AudioResampler(OUTPUT_RATE, OUTPUT_RATE, 1), input, 1, 100), 0.0f);
+    }
+
+    @Test
+    public void toneKeepsFrequencyAndLevel() {
+        int[] rates = {8000, 44100, 48000};
+        for (int rate : rates) {
+            float[] output = resample(new AudioResampler(rate, OUTPUT_RATE, 2), tone(rate, rate, 2, 1000.0), 2, 512);
+            // Skip the filter delay
+            int from = OUTPUT_RATE / 10;
+            assertEquals(rate + " Hz", 1000.0 * (output.length - from) / OUTPUT_RATE, zeroCrossings(output, from) / 2.0, 2.0);
+            assertEquals(rate + " Hz", Math.sqrt(0.5), rms(output, from), 0.05);
+        }
+    }
+
+    @Test
+    public void downmixAveragesChannels() {
+        int frames = 4800;
+        float[] input = new float[2 * frames];
+        float[] mono = tone(48000, frames, 1, 1000.0);
+        for (int i = 0; i < frames; i++) {
+            input[2 * i] = mono[i];
+            input[2 * i + 1] = -mono[i];
+        }
+        float[] output = resample(new AudioResampler(48000, OUTPUT_RATE, 2), input, 2, frames);
+        assertEquals(0.0, rms(output, 0), 1e-6);
+    }
+
+    @Test
+    public void removesAboveOutputNyquist() {
+        float[] output = resample(new AudioResampler(48000, OUTPUT_RATE, 1), tone(48000, 48000, 1, 14000.0), 1, 512);
+        assertTrue(rms(output, OUTPUT_RATE / 10) < 0.05);
+    }
+
+    @Test
+    public void resetRestartsStream() {
+        AudioResampler resampler = new AudioResampler(44100, OUTPUT_RATE, 1);
+        float[] input = tone(44100, 4410, 1, 440.0);
+        float[] first = resample(resampler, input, 1, 1000);
+        resampler.reset();
+        assertArrayEquals(first, resample(resampler, input, 1, 1000), 0.0f);
+    }
+
+    private static float[] resample(AudioResampler resampler, float[] input, int channels, int blockFrames) {
+        int frames = input.length / channels;
+        float[] output = new float[(int) resampler.getOutputFrames(frames) + 1];
+        int written = 0;
+        for (int i = 0; i < frames; i += blockFrames) {
+            int n = Math.min(blockFrames, frames - i);
+            int produced = resampler.process(input, i * channels, n, output, written);
+            assertTrue(produced <= resampler.getMaxOutputFrames(n));
+            written += produced;
+        }
+        float[] result = new float[written];
+        System.arraycopy(output, 0, result, 0, written);
+        return result;
+    }
+
+    private static float[] tone(int rate, int frames, int channels, double frequency) {
+        float[] samples = new float[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            float x = (float) Math.sin(2.0 * Math.PI * frequency * i / rate);
+            for (int c = 0; c < channels; c++)
+                samples[i * channels + c] = x;
+        }
+        return samples;
+    }
+
+    private static int zeroCrossings(float[] samples, int from) {
+        int crossings = 0;
+        for (int i = from + 1; i < samples.length; i++) {
+            if ((samples[i - 1] < 0.0f) != (samples[i] < 0.0f))
+                crossings++;
+        }
+        return crossings;
+    }
+
+    private static double rms(float[] samples, int from) {
+        double sum = 0.0;
+        for (int i = from; i < samples.length; i++)
+            sum += samples[i] * samples[i];
+        return Math.sqrt(sum / (samples.length - from));
+    }
+}
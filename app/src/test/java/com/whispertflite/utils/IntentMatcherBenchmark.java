@@ -0,0 +1,157 @@
+package com.whispertflite.utils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+import java.util.Random;
+
+// Desktop benchmark of IntentMatcher against the original full-matrix scan, run with the unit test classpath:
+//   java -cp <test classpath> com.whispertflite.utils.IntentMatcherBenchmark
+// Synthetic catalogues of 3-7 word utterances from a 600 word vocabulary; "near" queries are utterances with
+// 1-3 character edits, "miss" queries are unrelated sentences.
+public class IntentMatcherBenchmark {
+    static final int UTTERANCES_PER_INTENT = 10;
+    private static final int VOCABULARY_SIZE = 600;
+    private static final int QUERIES = 200;
+    private static final int[] SIZES = {100, 1000, 5000, 20000};
+
+    public static void main(String[] args) throws JSONException {
+        Random random = new Random(1);
+        String[] vocabulary = vocabulary(random);
+        System.out.printf(Locale.ROOT, "%7s %8s %12s %11s %13s%n", "N", "build", "near-match", "miss", "original scan");
+
+        for (int size : SIZES) {
+            String[] utterances = utterances(size, vocabulary, random);
+            String json = catalog(utterances);
+
+            long start = System.nanoTime();
+            IntentMatcher matcher = new IntentMatcher(json);
+            long build = System.nanoTime() - start;
+
+            String[] near = new String[QUERIES];
+            String[] miss = new String[QUERIES];
+            for (int q = 0; q < QUERIES; q++) {
+                near[q] = edit(utterances[random.nextInt(size)], 1 + random.nextInt(3), random);
+                miss[q] = sentence(vocabulary, random);
+            }
+
+            long nearNanos = time(matcher, near);
+            long missNanos = time(matcher, miss);
+            long scanNanos = System.nanoTime();
+            for (String query : miss)
+                fullScan(utterances, query);
+            scanNanos = System.nanoTime() - scanNanos;
+
+            System.out.printf(Locale.ROOT, "%7d %5d ms %9.1f us %8.1f us %10.1f us%n", size, build / 1_000_000,
+                    nearNanos / 1e3 / QUERIES, missNanos / 1e3 / QUERIES, scanNanos / 1e3 / QUERIES);
+        }
+    }
+
+    private static long time(IntentMatcher matcher, String[] queries) {
+        for (String query : queries)
+            matcher.match(query);
+        long start = System.nanoTime();
+        for (String query : queries)
+            matcher.match(query);
+        return System.nanoTime() - start;
+    }
+
+    // The original matching rule: smallest full Levenshtein distance below half the candidate length,
+    // first candidate on ties. Returns the candidate index, -1 if none is accepted.
+    static int fullScan(String[] candidates, String input) {
+        int bestDistance = Integer.MAX_VALUE;
+        int best = -1;
+        for (int c = 0; c < candidates.length; c++) {
+            int distance = levenshtein(input, candidates[c]);
+            if (distance < candidates[c].length() / 2 && distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    static int levenshtein(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++)
+            d[i][0] = i;
+        for (int j = 0; j <= b.length(); j++)
+            d[0][j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = (a.charAt(i - 1) == b.charAt(j - 1)) ? 0 : 1;
+                d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+
+    // conversation.json layout, UTTERANCES_PER_INTENT consecutive utterances per intent
+    static String catalog(String[] utterances) throws JSONException {
+        JSONArray intents = new JSONArray();
+        for (int first = 0; first < utterances.length; first += UTTERANCES_PER_INTENT) {
+            JSONArray tokenized = new JSONArray();
+            for (int u = first; u < Math.min(utterances.length, first + UTTERANCES_PER_INTENT); u++)
+                tokenized.put(new JSONArray(utterances[u].split(" ")));
+            JSONObject intent = new JSONObject();
+            intent.put("intent", "intent" + first / UTTERANCES_PER_INTENT);
+            intent.put("utterances", tokenized);
+            intent.put("responses", new JSONArray().put("response" + first / UTTERANCES_PER_INTENT));
+            intents.put(intent);
+        }
+        return intents.toString();
+    }
+
+    static String[] vocabulary(Random random) {
+        String[] words = new String[VOCABULARY_SIZE];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 2 + random.nextInt(7);
+            for (int c = 0; c < length; c++)
+                sb.append((char) ('a' + random.nextInt(26)));
+            words[i] = sb.toString();
+        }
+        return words;
+    }
+
+    static String[] utterances(int count, String[] vocabulary, Random random) {
+        String[] utterances = new String[count];
+        for (int i = 0; i < count; i++)
+            utterances[i] = sentence(vocabulary, random);
+        return utterances;
+    }
+
+    static String sentence(String[] vocabulary, Random random) {
+        StringBuilder sb = new StringBuilder();
+        int words = 3 + random.nextInt(5);
+        for (int w = 0; w < words; w++) {
+            if (w > 0)
+                sb.append(' ');
+            sb.append(vocabulary[random.nextInt(vocabulary.length)]);
+        }
+        return sb.toString();
+    }
+
+    // Random substitutions, insertions and deletions of letters
+    static String edit(String text, int edits, Random random) {
+        StringBuilder sb = new StringBuilder(text);
+        for (int e = 0; e < edits && sb.length() > 0; e++) {
+            int position = random.nextInt(sb.length());
+            char letter = (char) ('a' + random.nextInt(26));
+            switch (random.nextInt(3)) {
+                case 0:
+                    sb.setCharAt(position, letter);
+                    break;
+                case 1:
+                    sb.insert(position, letter);
+                    break;
+                default:
+                    sb.deleteCharAt(position);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,89 @@
+package com.whispertflite.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class IntentMatcherTest {
+    @Test
+    public void boundedDistanceMatchesFullMatrix() {
+        Random random = new Random(3);
+        int[] previous = new int[64];
+        int[] current = new int[64];
+        for (int i = 0; i < 500_000; i++) {
+            String a = randomText(random);
+            String b = randomText(random);
+            int bound = random.nextInt(12) - 1;
+            int distance = IntentMatcher.boundedDistance(a, b, bound, previous, current);
+            int expected = IntentMatcherBenchmark.levenshtein(a, b);
+            if (expected <= bound)
+                assertEquals(a + " | " + b + ", bound " + bound, expected, distance);
+            else
+                assertTrue(a + " | " + b + ", bound " + bound, distance > bound);
+        }
+    }
+
+    // The BK-tree search and its scan fallback give the intent of the original full-matrix scan
+    @Test
+    public void treeSearchMatchesFullScan() throws JSONException {
+        Random random = new Random(7);
+        String[] vocabulary = IntentMatcherBenchmark.vocabulary(random);
+        for (int size : new int[]{1, 50, 500, 3000}) {
+            String[] utterances = IntentMatcherBenchmark.utterances(size, vocabulary, random);
+            IntentMatcher matcher = new IntentMatcher(IntentMatcherBenchmark.catalog(utterances));
+
+            for (int q = 0; q < 300; q++) {
+                String query;
+                switch (q % 4) {
+                    case 0:
+                        query = utterances[random.nextInt(size)];
+                        break;
+                    case 1:
+                        query = IntentMatcherBenchmark.edit(utterances[random.nextInt(size)], 1 + random.nextInt(3), random);
+                        break;
+                    case 2:
+                        // Beyond the tree radii, only the scan fallback can match these
+                        query = IntentMatcherBenchmark.edit(utterances[random.nextInt(size)], 9 + random.nextInt(8), random);
+                        break;
+                    default:
+                        query = IntentMatcherBenchmark.sentence(vocabulary, random);
+                        break;
+                }
+
+                int candidate = IntentMatcherBenchmark.fullScan(utterances, query);
+                int expected = (candidate < 0) ? IntentMatcher.NO_MATCH
+                        : candidate / IntentMatcherBenchmark.UTTERANCES_PER_INTENT;
+                assertEquals("size " + size + ": " + query, expected, matcher.match(query));
+            }
+        }
+    }
+
+    @Test
+    public void tiesGoToTheFirstCandidate() throws JSONException {
+        IntentMatcher matcher = new IntentMatcher("["
+                + "{\"intent\": \"greet\", \"utterances\": [[\"hello\", \"there\"]], \"responses\": [\"hi\"]},"
+                + "{\"intent\": \"again\", \"utterances\": [[\"hello\", \"there\"], [\"good\", \"bye\"]], \"responses\": [\"bye\"]}"
+                + "]");
+
+        assertEquals(2, matcher.getIntentCount());
+        assertEquals(3, matcher.getCandidateCount());
+        assertEquals(0, matcher.match("hello there"));
+        assertEquals(0, matcher.match("hallo there"));
+        assertEquals(1, matcher.match("good bye"));
+        assertEquals(IntentMatcher.NO_MATCH, matcher.match("something else entirely"));
+        assertNull(matcher.respond(""));
+    }
+
+    private static String randomText(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(20);
+        for (int i = 0; i < length; i++)
+            sb.append((char) ('a' + random.nextInt(4)));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,73 @@
+package com.whispertflite.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// Template files written by saveTemplates(): magic, count, then per template its frame count and frames
+public class KeywordSpotterTemplatesTest {
+    private static final int MAGIC = 0x4b575331;
+    private static final int N_MFCC = 12;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void loadsSavedTemplates() throws IOException {
+        KeywordSpotter spotter = new KeywordSpotter(new WhisperUtil());
+        assertTrue(spotter.loadTemplates(write(2, 30, 30)));
+        assertEquals(2, spotter.getTemplateCount());
+
+        String saved = new File(mFolder.getRoot(), "saved.bin").getPath();
+        assertTrue(spotter.saveTemplates(saved));
+        KeywordSpotter reloaded = new KeywordSpotter(new WhisperUtil());
+        assertTrue(reloaded.loadTemplates(saved));
+        assertEquals(2, reloaded.getTemplateCount());
+    }
+
+    @Test
+    public void corruptLengthsKeepTemplates() throws IOException {
+        KeywordSpotter spotter = new KeywordSpotter(new WhisperUtil());
+        assertTrue(spotter.loadTemplates(write(1, 30, 30)));
+
+        int[] lengths = {-1, 0, 19, 151, Integer.MAX_VALUE};
+        for (int frames : lengths) {
+            assertFalse("frames: " + frames, spotter.loadTemplates(write(1, frames, 30)));
+            assertEquals(1, spotter.getTemplateCount());
+        }
+        assertFalse(spotter.loadTemplates(write(-1, 30, 30)));
+        assertEquals(1, spotter.getTemplateCount());
+    }
+
+    @Test
+    public void truncatedFileKeepsTemplates() throws IOException {
+        KeywordSpotter spotter = new KeywordSpotter(new WhisperUtil());
+        assertTrue(spotter.loadTemplates(write(1, 30, 30)));
+        assertFalse(spotter.loadTemplates(write(2, 40, 10)));
+        assertEquals(1, spotter.getTemplateCount());
+    }
+
+    // count templates declaring frames frames each, with writtenFrames frames of data actually written
+    private String write(int count, int frames, int writtenFrames) throws IOException {
+        File file = mFolder.newFile();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(count);
+            for (int t = 0; t < Math.max(count, 1); t++) {
+                out.writeInt(frames);
+                for (int i = 0; i < writtenFrames * N_MFCC; i++)
+                    out.writeFloat(0.1f * (i % 7));
+            }
+        }
+        return file.getPath();
+    }
+}
@@ -0,0 +1,128 @@
+package com.whispertflite.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class VoiceActivityDetectorTest {
+    private static final int FRAME = WhisperUtil.WHISPER_SAMPLE_RATE / 50;  // 20 ms
+    private static final int ONSET_FRAMES = 3;
+    private static final int HANGOVER_FRAMES = 10;
+
+    private final Random mRandom = new Random(1);
+    private VoiceActivityDetector mVad;
+    private long mPosition;
+
+    @Before
+    public void setUp() {
+        mVad = new VoiceActivityDetector();
+        mVad.setHangoverMs(HANGOVER_FRAMES * 20);
+        mPosition = 0;
+    }
+
+    @Test
+    public void speechStartsAfterOnsetFrames() {
+        feedNoise(50);
+        long speechStart = mPosition;
+
+        feedTone(ONSET_FRAMES - 1);
+        assertFalse(mVad.isSpeech());
+        feedTone(1);
+        assertTrue(mVad.isSpeech());
+        assertEquals(speechStart, mVad.getSegmentStart());
+        assertEquals(VoiceActivityDetector.NO_POSITION, mVad.getSegmentEnd());
+    }
+
+    @Test
+    public void shortBurstIsNotSpeech() {
+        feedNoise(50);
+        for (int i = 0; i < 5; i++) {
+            feedTone(ONSET_FRAMES - 1);
+            feedNoise(5);
+        }
+        assertFalse(mVad.isSpeech());
+        assertEquals(VoiceActivityDetector.NO_POSITION, mVad.getSegmentStart());
+    }
+
+    @Test
+    public void speechEndsAfterHangover() {
+        feedNoise(50);
+        feedTone(25);
+        long speechEnd = mPosition;
+
+        feedNoise(HANGOVER_FRAMES - 1);
+        assertTrue(mVad.isSpeech());
+        feedNoise(1);
+        assertFalse(mVad.isSpeech());
+        assertEquals(speechEnd, mVad.getSegmentEnd());
+    }
+
+    @Test
+    public void pauseShorterThanHangoverContinuesSegment() {
+        feedNoise(50);
+        long speechStart = mPosition;
+        feedTone(10);
+        feedNoise(HANGOVER_FRAMES - 2);
+        feedTone(10);
+        long speechEnd = mPosition;
+        feedNoise(HANGOVER_FRAMES);
+
+        assertFalse(mVad.isSpeech());
+        assertEquals(speechStart, mVad.getSegmentStart());
+        assertEquals(speechEnd, mVad.getSegmentEnd());
+    }
+
+    @Test
+    public void framesSpanProcessCalls() {
+        feedNoise(50);
+        long speechStart = mPosition;
+        // Odd sized blocks, frames never line up with the calls
+        short[] tone = tone(ONSET_FRAMES * FRAME);
+        short[] block = new short[97];
+        for (int i = 0; i < tone.length; i += block.length) {
+            int n = Math.min(block.length, tone.length - i);
+            System.arraycopy(tone, i, block, 0, n);
+            mVad.process(block, n);
+        }
+        mPosition += tone.length;
+
+        assertTrue(mVad.isSpeech());
+        assertEquals(speechStart, mVad.getSegmentStart());
+    }
+
+    @Test
+    public void noiseFloorFollowsSilence() {
+        // Uniform noise of +-100 is ~-55 dBFS
+        feedNoise(100);
+        assertEquals(-55.0f, mVad.getNoiseFloorDb(), 2.0f);
+        assertFalse(mVad.isSpeech());
+    }
+
+    private void feedNoise(int frames) {
+        short[] samples = new short[frames * FRAME];
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = (short) (mRandom.nextInt(201) - 100);
+        feed(samples);
+    }
+
+    private void feedTone(int frames) {
+        feed(tone(frames * FRAME));
+    }
+
+    private short[] tone(int length) {
+        short[] samples = new short[length];
+        for (int i = 0; i < length; i++)
+            samples[i] = (short) (8000 * Math.sin(2.0 * Math.PI * 440.0 * (mPosition + i) / WhisperUtil.WHISPER_SAMPLE_RATE));
+        return samples;
+    }
+
+    private void feed(short[] samples) {
+        mVad.process(samples, samples.length);
+        mPosition += samples.length;
+    }
+}
@@ -0,0 +1,83 @@
+package com.whispertflite.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+// The mapped vocab image (see WhisperUtil.MAPPED_SUFFIX) is a cache of the legacy filters_vocab file.
+// A corrupt cache must be rebuilt, a corrupt image given directly must be rejected.
+public class WhisperUtilVocabTest {
+    private static final File LEGACY = new File("src/main/assets/filters_vocab_en.bin");
+    private static final int OFFSETS_OFFSET = 28;
+    private static final int N_TOKENS = 20;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void corruptCacheIsRebuilt() throws IOException {
+        String vocab = copyLegacy();
+        File cache = new File(vocab + WhisperUtil.MAPPED_SUFFIX);
+        String expected = loadWord(vocab, 1000);
+        assertTrue(cache.exists());
+
+        // Offsets of later tokens point before earlier ones, then past the bytes section
+        corruptOffset(cache, 1000, 0x10000);
+        assertEquals(expected, loadWord(vocab, 1000));
+        corruptOffset(cache, tokenCount(cache), Integer.MAX_VALUE);
+        assertEquals(expected, loadWord(vocab, 1000));
+        corruptOffset(cache, 0, 4);
+        assertEquals(expected, loadWord(vocab, 1000));
+    }
+
+    @Test
+    public void corruptImageIsRejected() throws IOException {
+        String vocab = copyLegacy();
+        loadWord(vocab, 0);
+        File image = new File(vocab + WhisperUtil.MAPPED_SUFFIX);
+        corruptOffset(image, 500, -1);
+
+        assertFalse(new WhisperUtil().loadFiltersAndVocab(false, image.getPath()));
+    }
+
+    private String copyLegacy() throws IOException {
+        assumeTrue(LEGACY.exists());
+        File vocab = new File(mFolder.getRoot(), LEGACY.getName());
+        Files.copy(LEGACY.toPath(), vocab.toPath());
+        return vocab.getPath();
+    }
+
+    private static String loadWord(String vocab, int token) throws IOException {
+        WhisperUtil util = new WhisperUtil();
+        assertTrue(util.loadFiltersAndVocab(false, vocab));
+        return util.getWordFromToken(token);
+    }
+
+    private static int tokenCount(File image) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(image, "r")) {
+            file.seek(N_TOKENS);
+            return Integer.reverseBytes(file.readInt());
+        }
+    }
+
+    // Overwrite offsets[token] and keep the cache newer than the legacy file
+    private static void corruptOffset(File image, int token, int value) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(image, "rw")) {
+            file.seek(OFFSETS_OFFSET);
+            int offsets = Integer.reverseBytes(file.readInt());
+            file.seek(offsets + (long) token * Integer.BYTES);
+            file.writeInt(Integer.reverseBytes(value));
+        }
+        assertTrue(image.setLastModified(System.currentTimeMillis() + 60_000));
+    }
+}